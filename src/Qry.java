@@ -7,6 +7,8 @@ import java.io.*;
 import java.util.*;
 
 import retrieval_model.RetrievalModel;
+import support.Idx;
+import support.IndexContext;
 
 /**
  * The root class in the query operator hierarchy. Most of this class is
@@ -79,6 +81,12 @@ public abstract class Qry {
 	 */
 	public static final int INVALID_DOCID = Integer.MIN_VALUE;
 
+	/**
+	 * docIteratorHasMatchMin uses a heap of arguments (QryUnionIterator) if
+	 * there are at least this many; a linear scan is faster for fewer.
+	 */
+	private static final int UNION_HEAP_MIN_ARGS = 4;
+
 	/**
 	 * The arguments to this query operator. The TERM query operator has 0
 	 * arguments. The SCORE query operator has 1 argument. All other query operators
@@ -100,6 +108,19 @@ public abstract class Qry {
 	 */
 	private int docIteratorMatchCache = Qry.INVALID_DOCID;
 
+	/**
+	 * The union of the arguments, used by docIteratorHasMatchMin. It is
+	 * created the first time that it is needed.
+	 */
+	private QryUnionIterator union = null;
+
+	/**
+	 * The order in which docIteratorHasMatchAll visits the arguments. The first
+	 * argument is the lead iterator, whose docids the other arguments are
+	 * advanced to. If it is null, the arguments are visited in order.
+	 */
+	private int[] matchAllOrder = null;
+
 	private boolean matchStored = false; // Operators can cache matches
 	private int matchingDocid;
 
@@ -191,8 +212,12 @@ public abstract class Qry {
 	 */
 	public void docIteratorAdvancePast(int docid) {
 
-		for (Qry q_i : this.args) {
-			q_i.docIteratorAdvancePast(docid);
+		if (this.union != null) {
+			this.union.advancePast(docid);
+		} else {
+			for (Qry q_i : this.args) {
+				q_i.docIteratorAdvancePast(docid);
+			}
 		}
 
 		this.docIteratorClearMatchCache();
@@ -206,8 +231,12 @@ public abstract class Qry {
 	 */
 	public void docIteratorAdvanceTo(int docid) {
 
-		for (Qry q_i : this.args) {
-			q_i.docIteratorAdvanceTo(docid);
+		if (this.union != null) {
+			this.union.advanceTo(docid);
+		} else {
+			for (Qry q_i : this.args) {
+				q_i.docIteratorAdvanceTo(docid);
+			}
 		}
 
 		this.docIteratorClearMatchCache();
@@ -248,7 +277,9 @@ public abstract class Qry {
 	/**
 	 * An instantiation of docIteratorHasMatch that is true if the query has a
 	 * document that matches all query arguments; some subclasses may choose to use
-	 * this implementation.
+	 * this implementation. The arguments are visited in the order chosen by
+	 * optimizeMatchAllOrder, if it was called; the order doesn't change which
+	 * documents match.
 	 * 
 	 * @param r The retrieval model that determines what is a match
 	 * @return True if the query matches, otherwise false.
@@ -259,11 +290,13 @@ public abstract class Qry {
 
 		// Keep trying until a match is found or no match is possible.
 
+		int[] order = this.matchAllOrder;
+
 		while (!matchFound) {
 
-			// Get the docid of the first query argument.
+			// Get the docid of the lead query argument.
 
-			Qry q_0 = this.args.get(0);
+			Qry q_0 = this.args.get((order == null) ? 0 : order[0]);
 
 			if (!q_0.docIteratorHasMatch(r)) {
 				return false;
@@ -277,7 +310,7 @@ public abstract class Qry {
 			matchFound = true;
 
 			for (int i = 1; i < this.args.size(); i++) {
-				Qry q_i = this.args.get(i);
+				Qry q_i = this.args.get((order == null) ? i : order[i]);
 
 				q_i.docIteratorAdvanceTo(docid_0);
 
@@ -333,6 +366,21 @@ public abstract class Qry {
 	 */
 	protected boolean docIteratorHasMatchMin(RetrievalModel r) {
 
+		if (this.args.size() >= UNION_HEAP_MIN_ARGS) {
+			if (this.union == null) {
+				this.union = new QryUnionIterator(this.args);
+			}
+
+			int docid = this.union.getMatch(r);
+
+			if (docid == Qry.INVALID_DOCID) {
+				return false;
+			}
+
+			docIteratorSetMatchCache(docid);
+			return true;
+		}
+
 		int minDocid = Qry.INVALID_DOCID;
 
 		for (int i = 0; i < this.args.size(); i++) {
@@ -355,6 +403,14 @@ public abstract class Qry {
 		}
 	}
 
+	/**
+	 * Discard the union of the arguments that docIteratorHasMatchMin uses. It
+	 * must be discarded when the arguments are initialized again.
+	 */
+	protected void docIteratorResetUnion() {
+		this.union = null;
+	}
+
 	/**
 	 * Return the status of the cache.
 	 * 
@@ -369,10 +425,129 @@ public abstract class Qry {
 	 * 
 	 * @param docid The internal document id to store in the cache.
 	 */
-	private void docIteratorSetMatchCache(int docid) {
+	protected void docIteratorSetMatchCache(int docid) {
 		this.docIteratorMatchCache = docid;
 	}
 
+	/**
+	 * Estimate the number of documents that match the query operator. It is
+	 * an error to call this method before the object's initialize method is
+	 * called. This default treats the operator as the union of its arguments;
+	 * operators with other semantics override it.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return The estimated number of matching documents.
+	 */
+	public long getEstimatedDf(RetrievalModel r) {
+		long df = 0;
+
+		for (Qry q_i : this.args) {
+			df += q_i.getEstimatedDf(r);
+		}
+		return df;
+	}
+
+	/**
+	 * Choose the order in which docIteratorHasMatchAll visits the arguments:
+	 * rarest first, so that the lead iterator skips the most documents. Ties
+	 * keep the argument order. Only the order of docid iteration changes;
+	 * the argument list, and therefore location order and scoring, does not.
+	 * It is an error to call this method before the arguments are initialized.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 */
+	protected void optimizeMatchAllOrder(RetrievalModel r) {
+		int n = this.args.size();
+		final long[] dfs = new long[n];
+		Integer[] order = new Integer[n];
+
+		for (int i = 0; i < n; i++) {
+			dfs[i] = this.args.get(i).getEstimatedDf(r);
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return Long.compare(dfs[i], dfs[j]);
+			}
+		});
+
+		this.matchAllOrder = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			this.matchAllOrder[i] = order[i];
+		}
+	}
+
+	/**
+	 * Indicates whether the query operator has been initialized. Operators
+	 * that don't always initialize their arguments (e.g., because they share
+	 * the result of an identical operator) must override it.
+	 * 
+	 * @return True if the operator was initialized.
+	 */
+	protected boolean isInitialized() {
+		return true;
+	}
+
+	/**
+	 * Get a note that explains how the query operator got its result without
+	 * evaluating its arguments, e.g., "shared".
+	 * 
+	 * @return The note, or null if the arguments were evaluated.
+	 */
+	protected String getPlanNote() {
+		return null;
+	}
+
+	/**
+	 * Describe the query plan: each operator, its estimated number of
+	 * matching documents, and the argument order chosen for conjunctions.
+	 * Arguments that weren't evaluated are not described. It is an error to
+	 * call this method before the object's initialize method is called.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return The plan, one operator per line.
+	 */
+	public String explain(RetrievalModel r) {
+		StringBuilder plan = new StringBuilder();
+		this.explain(r, plan, "");
+		return plan.toString();
+	}
+
+	private void explain(RetrievalModel r, StringBuilder plan, String indent) {
+		plan.append(indent);
+		plan.append((this.args.size() == 0) ? this.toString() : this.getDisplayName());
+
+		if (!this.isInitialized()) {
+			plan.append("  (not initialized)\n");
+			return;
+		}
+
+		plan.append("  est. df: ").append(this.getEstimatedDf(r));
+
+		String note = this.getPlanNote();
+
+		if (note != null) {
+			plan.append("  (").append(note).append(")\n");
+			return;
+		}
+
+		if (this.matchAllOrder != null) {
+			plan.append(", lead: ").append(this.matchAllOrder[0]).append(", order:");
+
+			for (int i : this.matchAllOrder) {
+				plan.append(' ').append(i);
+			}
+		}
+
+		plan.append('\n');
+
+		for (Qry q_i : this.args) {
+			q_i.explain(r, plan, indent + "  ");
+		}
+	}
+
 	/**
 	 * Get the i'th query argument. The main value of this method is that it casts
 	 * the argument to the correct type.
@@ -396,12 +571,27 @@ public abstract class Qry {
 
 	/**
 	 * Initialize the query operator (and its arguments), including any internal
-	 * iterators; this method must be called before iteration can begin.
+	 * iterators; this method must be called before iteration can begin. The
+	 * query is evaluated against the specified index; operators must not use
+	 * Idx's current index, so that queries can be evaluated concurrently
+	 * against one or several indexes.
+	 * 
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public abstract void initialize(IndexContext context, RetrievalModel r) throws IOException;
+
+	/**
+	 * Initialize the query operator (and its arguments) to search the current
+	 * index.
 	 * 
 	 * @param r A retrieval model that guides initialization
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	public abstract void initialize(RetrievalModel r) throws IOException;
+	public void initialize(RetrievalModel r) throws IOException {
+		this.initialize(Idx.getIndexContext(), r);
+	}
 
 	/**
 	 * Removes an argument from the list of query operator arguments.
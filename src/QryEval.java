@@ -5,6 +5,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -20,9 +21,14 @@ import retrieval_model.RetrievalModelBM25;
 import retrieval_model.RetrievalModelIndri;
 import retrieval_model.RetrievalModelRankedBoolean;
 import retrieval_model.RetrievalModelUnrankedBoolean;
+import support.DocIdBitmap;
+import support.FilterCache;
 import support.Idx;
+import support.IndexContext;
+import support.ResultCache;
 import support.ScoreList;
 import support.Timer;
+import support.TopKCollector;
 
 /**
  * This software illustrates the architecture for the portion of a search engine
@@ -39,6 +45,28 @@ public class QryEval {
 
 	private static final String[] TEXT_FIELDS = { "body", "title", "url", "inlink" };
 
+	/**
+	 * If true, print each query's plan after it is initialized.
+	 */
+	private static boolean explain = false;
+
+	/**
+	 * Parsed query plans, reused when a query string repeats.
+	 */
+	private static QryPlanCache planCache = new QryPlanCache(0);
+
+	/**
+	 * Query results, reused when a query is repeated with the same model,
+	 * parameters, and result length.
+	 */
+	private static ResultCache resultCache = new ResultCache(0);
+
+	/**
+	 * Bitmaps of repeated query subtrees, for queries that are evaluated as
+	 * bitmaps. It is disabled unless the filterCacheMB parameter is set.
+	 */
+	private static FilterCache filterCache = new FilterCache(0);
+
 	// --------------- Methods ---------------------------------------
 
 	/**
@@ -65,11 +93,37 @@ public class QryEval {
 
 		Map<String, String> parameters = readParameterFile(args[0]);
 
-		// Open the index and initialize the retrieval model.
+		// Open the index and initialize the retrieval model. The postings
+		// cache, document length, and postings streaming options must be
+		// known before the index is opened.
+
+		Idx.setPreloadDocLengths(Boolean.parseBoolean(parameters.get("preloadDocLengths")));
+		Idx.setBuildExternalIdTable(Boolean.parseBoolean(parameters.get("externalIdTable")));
+		Idx.setBuildBlockMetadata(Boolean.parseBoolean(parameters.get("blockMaxIndex")));
+		Idx.setBigramIndexPath(parameters.get("bigramIndexPath"));
+		Idx.setStreamingPostings(Boolean.parseBoolean(parameters.get("streamingPostings")));
+
+		if (parameters.containsKey("postingsCacheMB")) {
+			Idx.setPostingsCacheCapacity(Long.parseLong(parameters.get("postingsCacheMB")) * 1024L * 1024L);
+		}
 
 		Idx.open(parameters.get("indexPath"));
 		RetrievalModel model = initializeRetrievalModel(parameters);
 
+		explain = Boolean.parseBoolean(parameters.get("explain"));
+
+		if (parameters.containsKey("queryPlanCacheSize")) {
+			planCache = new QryPlanCache(Integer.parseInt(parameters.get("queryPlanCacheSize")));
+		}
+
+		if (parameters.containsKey("resultCacheMB")) {
+			resultCache = new ResultCache(Long.parseLong(parameters.get("resultCacheMB")) * 1024L * 1024L);
+		}
+
+		if (parameters.containsKey("filterCacheMB")) {
+			filterCache = new FilterCache(Long.parseLong(parameters.get("filterCacheMB")) * 1024L * 1024L);
+		}
+
 		// hw1
 		String length = parameters.get("trecEvalOutputLength");
 		int len = -1;
@@ -84,11 +138,21 @@ public class QryEval {
 
 		// Perform experiments.
 
-		processQueryFile(parameters.get("queryFilePath"), len, outputPath, model);
+		int threads = 1;
+
+		if (parameters.containsKey("threads")) {
+			threads = Integer.parseInt(parameters.get("threads"));
+		}
+
+		processQueryFile(parameters.get("queryFilePath"), len, outputPath, model, threads);
 
 		// Clean up.
 
 		timer.stop();
+		System.out.println("Postings cache:  " + Idx.getPostingsCache());
+		System.out.println("Query plan cache:  " + planCache);
+		System.out.println("Result cache:  " + resultCache);
+		System.out.println("Filter cache:  " + filterCache);
 		System.out.println("Time:  " + timer);
 	}
 
@@ -132,42 +196,157 @@ public class QryEval {
 	 * @param gc If true, run the garbage collector before reporting.
 	 */
 	public static void printMemoryUsage(boolean gc) {
+		printMemoryUsage(System.out, gc);
+	}
+
+	/**
+	 * Write the amount of memory used to a stream.
+	 * 
+	 * @param out The stream.
+	 * @param gc  If true, run the garbage collector before reporting.
+	 */
+	static void printMemoryUsage(PrintStream out, boolean gc) {
 
 		Runtime runtime = Runtime.getRuntime();
 
 		if (gc)
 			runtime.gc();
 
-		System.out
-				.println("Memory used:  " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
+		out.println("Memory used:  " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
 	}
 
 	/**
 	 * Process one query.
 	 * 
-	 * @param qString A string that contains a query.
-	 * @param model   The retrieval model determines how matching and scoring is
-	 *                done.
+	 * @param qString      A string that contains a query.
+	 * @param context      The index to search.
+	 * @param model        The retrieval model determines how matching and
+	 *                     scoring is done.
+	 * @param outputLength The number of results that will be used. If it is
+	 *                     positive, only the best outputLength documents are
+	 *                     kept; otherwise all matching documents are kept.
+	 * @param log          Receives diagnostics, e.g., the query plan.
 	 * @return Search results
 	 * @throws IOException Error accessing the index
 	 */
-	static ScoreList processQuery(String qString, RetrievalModel model) throws IOException {
+	static ScoreList processQuery(String qString, IndexContext context, RetrievalModel model,
+			int outputLength, PrintStream log) throws IOException {
 
 		String defaultOp = model.defaultQrySopName();
 		qString = defaultOp + "(" + qString + ")";
-		Qry q = QryParser.getQuery(qString);
+
+		Qry q = planCache.getQuery(qString, model);
 
 		// Show the query that is evaluated
 
-		System.out.println("    --> " + q);
+		log.println("    --> " + q);
+
+		if (q == null) {
+			return null;
+		}
+
+		// A repeated query doesn't need to be evaluated again. The query
+		// plan is only shown if the query is evaluated, so explain
+		// bypasses cached results.
+
+		String resultKey = model.getParameters() + "\n" + outputLength + "\n" + QryPlanCache.normalize(qString);
+		ScoreList cached = explain ? null : resultCache.get(context, resultKey);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		ScoreList r = evaluateQuery(q, context, model, outputLength, log);
+
+		if (r != null) {
+			resultCache.put(context, resultKey, r);
+		}
+
+		return r;
+	}
+
+	/**
+	 * Evaluate a query.
+	 * 
+	 * @param q            The query.
+	 * @param context      The index to search.
+	 * @param model        The retrieval model that determines how scores are
+	 *                     calculated.
+	 * @param outputLength The number of results that will be used. If it is
+	 *                     positive, only the best outputLength documents are
+	 *                     kept; otherwise all matching documents are kept.
+	 * @param log          Receives diagnostics, e.g., the query plan.
+	 * @return The search results, sorted.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	private static ScoreList evaluateQuery(Qry q, IndexContext context, RetrievalModel model,
+			int outputLength, PrintStream log) throws IOException {
 
 		if (q != null) {
 
-			ScoreList r = new ScoreList();
+			ScoreList r = new ScoreList(context);
 
 			if (q.args.size() > 0) { // Ignore empty queries
 
-				q.initialize(model);
+				// If every match has the same score, the query can be evaluated
+				// with set operations on bitmaps, without document iterators.
+				// Repeated subtrees come from the filter cache.
+
+				if (((QrySop) q).hasMatchBitmap(model)) {
+					DocIdBitmap matches = ((QrySop) q).getMatchBitmap(context, model, filterCache);
+					DocIdBitmap.DocIterator it = matches.iterator();
+					TopKCollector topK = (outputLength > 0) ? new TopKCollector(context, outputLength) : null;
+
+					if (explain) {
+						log.println("    bitmap: " + matches.cardinality() + " matches");
+					}
+
+					for (int docid = it.next(); docid != DocIdBitmap.NO_MORE_DOCS; docid = it.next()) {
+						if (topK != null) {
+							topK.add(docid, 1.0);
+						} else {
+							r.add(docid, 1.0);
+						}
+					}
+
+					if (topK != null) {
+						return topK.getScoreList();
+					}
+
+					r.sort();
+					return r;
+				}
+
+				q.initialize(context, model);
+
+				if (explain) {
+					log.print(q.explain(model));
+				}
+
+				if (outputLength > 0) {
+
+					// Keep only the documents that can be in the output. Tell the
+					// query what score a document must reach to be kept, so that
+					// it can skip documents that can't.
+
+					TopKCollector topK = new TopKCollector(context, outputLength);
+					QrySop sop = (QrySop) q;
+
+					while (true) {
+						sop.setScoreThreshold(topK.getMinScore());
+
+						if (!q.docIteratorHasMatch(model)) {
+							break;
+						}
+
+						int docid = q.docIteratorGetMatch();
+						double score = sop.getScore(model);
+						topK.add(docid, score);
+						q.docIteratorAdvancePast(docid);
+					}
+
+					return topK.getScoreList();
+				}
 
 				while (q.docIteratorHasMatch(model)) {
 					int docid = q.docIteratorGetMatch();
@@ -186,15 +365,28 @@ public class QryEval {
 	}
 
 	/**
-	 * Process the query file.
+	 * Process the query file. If threads is greater than 1, queries are
+	 * evaluated concurrently by that many worker threads; the results are
+	 * still written in the order of the query file.
 	 * 
 	 * @param queryFilePath
+	 * @param outputLength
+	 * @param outputPath
 	 * @param model
+	 * @param threads The number of queries to evaluate at once.
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	static void processQueryFile(String queryFilePath, int outputLength, String outputPath, RetrievalModel model)
-			throws IOException {
+	static void processQueryFile(String queryFilePath, int outputLength, String outputPath, RetrievalModel model,
+			int threads) throws IOException {
+
+		if (threads > 1) {
+			processQueryFileParallel(queryFilePath, outputLength, outputPath, model, threads);
+			return;
+		}
+
+		// Every query in the file searches the index that is current now.
 
+		IndexContext context = Idx.getIndexContext();
 		BufferedReader input = null;
 
 		try {
@@ -222,7 +414,7 @@ public class QryEval {
 
 				ScoreList r = null;
 
-				r = processQuery(query, model);
+				r = processQuery(query, context, model, outputLength, System.out);
 
 				if (r != null) {
 					// printResults(qid, outputLength, r);
@@ -240,6 +432,118 @@ public class QryEval {
 		}
 	}
 
+	/**
+	 * The results of a query that a worker thread evaluated, and the
+	 * diagnostics that it would have printed.
+	 */
+	private static class QueryOutput {
+		private final ScoreList results;
+		private final String log;
+
+		private QueryOutput(ScoreList results, String log) {
+			this.results = results;
+			this.log = log;
+		}
+	}
+
+	/**
+	 * Process the query file with a pool of worker threads. Each query is
+	 * parsed and evaluated by one worker, using its own query tree. The main
+	 * thread writes the results of each query as soon as it and every query
+	 * before it are done. Diagnostics are buffered with the results and
+	 * printed in the same order, so the output of different queries doesn't
+	 * interleave.
+	 * 
+	 * @param queryFilePath
+	 * @param outputLength
+	 * @param outputPath
+	 * @param model
+	 * @param threads The number of worker threads.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	private static void processQueryFileParallel(String queryFilePath, int outputLength, String outputPath,
+			RetrievalModel model, int threads) throws IOException {
+
+		// Read the whole query file first, so that syntax errors are
+		// reported before any work is done.
+
+		final IndexContext context = Idx.getIndexContext();
+		List<String> qids = new ArrayList<String>();
+		List<Future<QueryOutput>> results = new ArrayList<Future<QueryOutput>>();
+		List<String> qLines = new ArrayList<String>();
+
+		BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
+
+		try {
+			String qLine = null;
+
+			while ((qLine = input.readLine()) != null) {
+				if (qLine.indexOf(':') < 0) {
+					throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+				}
+				qLines.add(qLine);
+			}
+		} finally {
+			input.close();
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try {
+			for (final String qLine : qLines) {
+				int d = qLine.indexOf(':');
+				final String query = qLine.substring(d + 1);
+
+				qids.add(qLine.substring(0, d));
+				results.add(pool.submit(new Callable<QueryOutput>() {
+					public QueryOutput call() throws IOException {
+						ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+						PrintStream log = new PrintStream(buffer);
+
+						printMemoryUsage(log, false);
+						log.println("Query " + qLine);
+						ScoreList r = processQuery(query, context, model, outputLength, log);
+						log.flush();
+						return new QueryOutput(r, buffer.toString());
+					}
+				}));
+			}
+
+			PrintWriter writer = new PrintWriter(outputPath);
+
+			for (int i = 0; i < results.size(); i++) {
+				QueryOutput output = null;
+
+				try {
+					output = results.get(i).get();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while evaluating query " + qids.get(i), ex);
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else {
+						throw new IOException("Error evaluating query " + qids.get(i), cause);
+					}
+				}
+
+				System.out.print(output.log);
+
+				if (output.results != null) {
+					saveResults(qids.get(i), outputLength, writer, output.results);
+				}
+			}
+
+			writer.close();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
 	/**
 	 * Print the query results.
 	 * 
@@ -259,7 +563,7 @@ public class QryEval {
 			System.out.println("\tNo results.");
 		} else {
 			for (int i = 0; i < result.size() && i < length; i++) {
-				System.out.println(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + i + " "
+				System.out.println(queryName + " Q0 " + result.getExternalDocid(i) + " " + i + " "
 						+ result.getDocidScore(i) + " fubar");
 			}
 		}
@@ -283,7 +587,7 @@ public class QryEval {
 		} else {
 			for (int i = 0; i < result.size() && i < length; i++) {
 				int rank = i + 1;
-				writer.println(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + rank + " "
+				writer.println(queryName + " Q0 " + result.getExternalDocid(i) + " " + rank + " "
 						+ result.getDocidScore(i) + " fubar");
 			}
 		}
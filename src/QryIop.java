@@ -5,6 +5,8 @@ import java.io.*;
 import java.util.*;
 
 import retrieval_model.RetrievalModel;
+import support.DocIdBitmap;
+import support.IndexContext;
 import support.InvList;
 
 /**
@@ -37,6 +39,11 @@ public abstract class QryIop extends Qry {
    *  Iteration in QryIop and QrySop is very different.  In QryIop,
    *  docIterator and locIterator iterate over the cached inverted
    *  list, NOT recursively over the query arguments.
+   *
+   *  The docIterator advances by galloping search over the inverted
+   *  list's docids (InvList.findDocid), so a conjunction that skips
+   *  most of a long list pays for the postings it lands on, not for
+   *  every posting it passes.
    */
 
   /**
@@ -50,12 +57,40 @@ public abstract class QryIop extends Qry {
    */
   protected String field = null;
 
+  /**
+   *  True if a parent query operator reads the locations of this
+   *  operator's matches (e.g., this is an argument of #NEAR/n).
+   *  Operators that stream their postings may skip decoding
+   *  locations when no parent needs them.
+   */
+  protected boolean positionsRequired = false;
+
+  /**
+   *  The index that the query operator searches.  It is set when the
+   *  query operator is initialized.
+   */
+  protected IndexContext context = null;
+
   /**
    *  The inverted list that is produced when the query operator is
    *  initialized; use the docIterator to access this list.
    */
   protected InvList invertedList = null;
 
+  /**
+   *  An identical operator that is initialized before this one in the
+   *  same query, or null.  If it is set, this operator uses that
+   *  operator's inverted list instead of evaluating its own.
+   */
+  private QryIop sharedWith = null;
+
+  /**
+   *  How the inverted list was obtained without evaluating the
+   *  arguments (e.g., "shared" or "bigram index"), or null if it was
+   *  evaluated.
+   */
+  private String listSource = null;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -73,9 +108,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid < Integer.MAX_VALUE) {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
+    } else {
+      this.docIteratorIndex = this.invertedList.df;
     }
            
     this.locIteratorIndex = 0;
@@ -88,10 +125,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -101,7 +136,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -116,12 +151,35 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Get the locations of the document that the docIterator points to
+   *  now, without copying them.  They are the docIteratorGetMatchTf()
+   *  entries of the returned array that start at
+   *  docIteratorGetMatchPositionsOffset(), in increasing order.  The
+   *  array must be treated as read-only, and it is only valid until
+   *  the docIterator moves.
+   *  @return An array that contains the locations.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int[] docIteratorGetMatchPositions () {
+    return this.invertedList.getPositions ();
+  }
+
+  /**
+   *  Get the index of the current document's first location in the
+   *  array that docIteratorGetMatchPositions returns.
+   *  @return The index of the first location.
+   */
+  public int docIteratorGetMatchPositionsOffset () {
+    return this.invertedList.getPositionOffset (this.docIteratorIndex);
   }
 
   /**
@@ -153,6 +211,39 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the documents that match this query operator as a bitmap.  It
+   *  is an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The documents that match.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public DocIdBitmap getDocIdBitmap () throws IOException {
+    return DocIdBitmap.of (this.invertedList);
+  }
+
+  /**
+   *  Get the number of documents that match this query operator.  The
+   *  inverted list is complete after initialization, so the estimate
+   *  is exact.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The document frequency (df).
+   */
+  @Override
+  public long getEstimatedDf (RetrievalModel r) {
+    return this.getDf ();
+  }
+
+  /**
+   *  Get the largest term frequency of any document that matches this
+   *  query operator.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The largest term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.getMaxTf ();
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -161,6 +252,57 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Get the operator's inverted list without evaluating the operator,
+   *  if it is available (e.g., from an auxiliary index).  It is called
+   *  during initialization, before the arguments are initialized.
+   *  @return The inverted list, or null if the operator must be
+   *          evaluated.
+   *  @throws IOException Error accessing the index.
+   */
+  protected InvList getPrecomputedInvList () throws IOException {
+    return null;
+  }
+
+  /**
+   *  Describe where getPrecomputedInvList gets inverted lists, for
+   *  query plans.
+   *  @return A short description, e.g., "bigram index".
+   */
+  protected String getPrecomputedSource () {
+    return "precomputed";
+  }
+
+  /**
+   *  An operator that isn't initialized has no context.  The arguments
+   *  of an operator that shares or precomputes its inverted list are
+   *  never initialized.
+   *  @return True if the operator was initialized.
+   */
+  @Override
+  protected boolean isInitialized () {
+    return (this.context != null);
+  }
+
+  /**
+   *  @return How the inverted list was obtained without evaluating the
+   *          arguments, or null if it was evaluated.
+   */
+  @Override
+  protected String getPlanNote () {
+    return this.listSource;
+  }
+
+  /**
+   *  Share the inverted list of an identical operator instead of
+   *  evaluating this operator.  The other operator must be initialized
+   *  first.
+   *  @param q An identical operator, or null to evaluate this operator.
+   */
+  void setSharedWith (QryIop q) {
+    this.sharedWith = q;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -172,14 +314,48 @@ public abstract class QryIop extends Qry {
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
+   *  @param context The index to search
    *  @param r A retrieval model (that is ignored)
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(IndexContext context, RetrievalModel r) throws IOException {
+
+    this.context = context;
+    this.listSource = null;
+
+    //  An identical operator was already evaluated, so share its
+    //  inverted list.  The list is read-only, and this operator keeps
+    //  its own iterators.  Streaming operators have no list to share.
+
+    QryIop shared = this.sharedWith;
+
+    if ((shared != null) && (shared.context == context) &&
+        (shared.invertedList != null)) {
+      this.invertedList = shared.invertedList;
+      this.listSource = "shared";
+      this.docIteratorIndex = 0;
+      this.locIteratorIndex = 0;
+      return;
+    }
+
+    //  Some operators can read their inverted list from an auxiliary
+    //  index, without evaluating their arguments.
+
+    InvList precomputed = this.getPrecomputedInvList ();
+
+    if (precomputed != null) {
+      this.invertedList = precomputed;
+      this.listSource = this.getPrecomputedSource ();
+      this.docIteratorIndex = 0;
+      this.locIteratorIndex = 0;
+      return;
+    }
 
-    //  Initialize the query arguments (if any).
+    //  Initialize the query arguments (if any).  Arguments of an
+    //  inverted list operator must provide locations.
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).positionsRequired = true;
+      ((QryIop) q_i).initialize (context, r);
     }
 
     //  Evaluate the operator.
@@ -206,11 +382,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -221,7 +397,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -232,8 +408,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
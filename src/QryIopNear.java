@@ -21,9 +21,48 @@ public class QryIopNear extends QryIop {
 		this.operatorDistance = operatorDistance;
 	}
 
+	/**
+	 * #NEAR/1 of two different terms is a bigram, so its inverted list may be in
+	 * the bigram index. Other operators must be evaluated.
+	 * 
+	 * @return The inverted list, or null if the operator must be evaluated.
+	 */
+	protected InvList getPrecomputedInvList() {
+
+		if ((this.operatorDistance != 1) || (this.args.size() != 2) || !(this.args.get(0) instanceof QryIopTerm)
+				|| !(this.args.get(1) instanceof QryIopTerm)) {
+			return null;
+		}
+
+		String term1 = ((QryIopTerm) this.args.get(0)).getTerm();
+		String term2 = ((QryIopTerm) this.args.get(1)).getTerm();
+
+		if (term1.equals(term2)) {
+			return null;
+		}
+
+		return this.context.getBigramInvList(term1, term2, this.getField());
+	}
+
+	/**
+	 * @return The source of precomputed inverted lists.
+	 */
+	protected String getPrecomputedSource() {
+		return "bigram index";
+	}
+
 	/**
 	 * Evaluate the query operator; the result is an internal inverted list that may
 	 * be accessed via the internal iterators.
+	 * <p>
+	 * For each document that every argument matches, the locations are matched
+	 * greedily in argument order: starting from each location of the first
+	 * argument, each later argument must have a location after the previous
+	 * argument's, within the operator distance. A match records the last
+	 * argument's location, and every argument moves past the location that it
+	 * used. Locations are read directly from the arguments' position arrays, and
+	 * the scratch buffers are reused, so no objects are allocated per document.
+	 * </p>
 	 * 
 	 * @throws IOException Error accessing the Lucene index.
 	 */
@@ -37,118 +76,98 @@ public class QryIopNear extends QryIop {
 			return;
 		}
 
-		// Each pass of the loop adds 1 document to result inverted list
-		// until all of the argument inverted lists are depleted.
-		while (true) {
+		int n = this.args.size();
 
-			// Find the common next document id. If there is none, we're done.
+		// The arguments' location slices for the current document: locs[i]
+		// from index loc[i] (the next unused location) to end[i].
 
-			boolean matchFound = false;
+		int[][] locs = new int[n][];
+		int[] loc = new int[n];
+		int[] end = new int[n];
 
-			// Keep trying until a match is found or no match is possible.
+		// A scratch buffer for the matched locations of one document. It is
+		// reused for every document, and grows as necessary.
 
-			while (!matchFound) {
+		int[] positions = new int[16];
 
-				// Get the docid of the first query argument.
+		// Visit the rarest argument's documents first. Locations are still
+		// matched in argument order.
 
-				Qry q_0 = this.args.get(0);
+		this.optimizeMatchAllOrder(null);
 
-				if (!q_0.docIteratorHasMatch(null))
-					return;
+		// Each pass of the loop adds at most 1 document to result inverted
+		// list, until one of the argument inverted lists is depleted.
 
-				int docid_0 = q_0.docIteratorGetMatch();
+		while (this.docIteratorHasMatchAll(null)) {
 
-				// Other query arguments must match the docid of the first query
-				// argument
+			int docid = this.args.get(0).docIteratorGetMatch();
 
-				matchFound = true;
-
-				for (int i = 1; i < this.args.size(); i++) {
-					Qry q_i = this.args.get(i);
-
-					q_i.docIteratorAdvanceTo(docid_0);
-
-					if (!q_i.docIteratorHasMatch(null)) { // If any argument is exhausted
-						return; // there are no more matches.
-					}
+			for (int i = 0; i < n; i++) {
+				QryIop q_i = (QryIop) this.args.get(i);
 
-					int docid_i = q_i.docIteratorGetMatch();
-
-					if (docid_0 != docid_i) { // docid_0 can't match. Try again.
-						q_0.docIteratorAdvanceTo(docid_i);
-						matchFound = false;
-						break;
-					}
-				} // All docids have been processed. Done.
-
-				if (matchFound) {
-
-					// Create a new posting that is the union of the posting lists
-					// that match the previous Docid within operator distance. Save it.
-
-					List<Integer> positions = new ArrayList<Integer>();
-
-					// each pass of the loop adds one location id of the first arg
-					outterloop: while (true) {
+				locs[i] = q_i.docIteratorGetMatchPositions();
+				loc[i] = q_i.docIteratorGetMatchPositionsOffset();
+				end[i] = loc[i] + q_i.docIteratorGetMatchTf();
+			}
 
-						// find the loc id within operator distance in one document
-						boolean nearFound = false;
+			// Each pass of the loop tries one location of the first argument.
+			// Matches are found in increasing order of the last argument's
+			// location, so the result doesn't need to be sorted.
 
-						// keep trying until a match is found or no possible match
-						while (!nearFound) {
+			int count = 0;
 
-							if (!((QryIop) q_0).locIteratorHasMatch())
-								break outterloop;
+			matching: while (loc[0] < end[0]) {
 
-							int locid_0 = ((QryIop) q_0).locIteratorGetMatch();
-							int locid_pre = locid_0;
-							nearFound = true;
+				int previous = locs[0][loc[0]];
+				boolean nearFound = true;
 
-							// other arguments must match the location id of the previous argument within
-							// the operator distance
-							for (int j = 1; j < this.args.size(); j++) {
+				for (int j = 1; j < n; j++) {
 
-								Qry q_j = this.args.get(j);
-								((QryIop) q_j).locIteratorAdvancePast(locid_pre);
+					// Skip locations that are not after the previous argument's.
 
-								if (!((QryIop) q_j).locIteratorHasMatch())
-									break outterloop;
+					int[] locs_j = locs[j];
+					int l = loc[j];
 
-								int locid_j = ((QryIop) q_j).locIteratorGetMatch();
-								if (locid_j - locid_pre > operatorDistance) {
-									((QryIop) q_0).locIteratorAdvance();
-									nearFound = false;
-									break;
-								}
+					while ((l < end[j]) && (locs_j[l] <= previous)) {
+						l++;
+					}
 
-								locid_pre = locid_j;
-							}
+					loc[j] = l;
 
-							// find a match
+					if (l == end[j]) {
+						break matching; // No more matches are possible.
+					}
 
-							if (nearFound) {
+					if (locs_j[l] - previous > this.operatorDistance) {
+						nearFound = false; // Try the next location of the first argument.
+						break;
+					}
 
-								positions.add(locid_pre);
+					previous = locs_j[l];
+				}
 
-								// forward the loc id of every argument
-								for (int i = 0; i < this.args.size(); i++) {
-									Qry qry_i = this.args.get(i);
-									((QryIop) qry_i).locIteratorAdvance();
-								}
-							}
-						}
+				if (nearFound) {
+					if (count == positions.length) {
+						positions = Arrays.copyOf(positions, count * 2);
 					}
+					positions[count++] = previous;
+
+					// Each argument moves past the location that it used.
 
-					Collections.sort(positions);
-					if (positions.size() > 0) {
-						this.invertedList.appendPosting(docid_0, positions);
+					for (int i = 1; i < n; i++) {
+						loc[i]++;
 					}
-					q_0.docIteratorAdvancePast(docid_0);
 				}
+
+				loc[0]++;
 			}
 
-		}
+			if (count > 0) {
+				this.invertedList.appendPosting(docid, positions, count);
+			}
 
+			this.args.get(0).docIteratorAdvancePast(docid);
+		}
 	}
 
 }
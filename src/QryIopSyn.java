@@ -27,6 +27,18 @@ public class QryIopSyn extends QryIop {
       return;
     }
 
+    //  Arguments are visited in docid order with a heap, so the cost
+    //  of each document depends on the number of arguments that match
+    //  it, not on the number of arguments.
+
+    QryUnionIterator union = new QryUnionIterator (this.args);
+    int[] matches = new int[this.args.size ()];
+
+    //  A scratch buffer for the locations of one document.  It is
+    //  reused for every document, and grows as necessary.
+
+    int[] positions = new int[16];
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
@@ -34,18 +46,7 @@ public class QryIopSyn extends QryIop {
 
       //  Find the minimum next document id.  If there is none, we're done.
 
-      int minDocid = Qry.INVALID_DOCID;
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
-        }
-      }
+      int minDocid = union.getMatch (null);
 
       if (minDocid == Qry.INVALID_DOCID)
         break;				// All docids have been processed.  Done.
@@ -55,21 +56,106 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int numMatches = union.getMatchingArgs (null, minDocid, matches);
+      int count = 0;
+
+      for (int m = 0; m < numMatches; m++) {
+        count += this.getArg (matches[m]).docIteratorGetMatchTf ();
+      }
+
+      if (count > positions.length) {
+        positions = Arrays.copyOf (positions,
+                                   Math.max (count, positions.length * 2));
+      }
+
+      this.mergeLocations (matches, numMatches, positions);
+      union.advancePast (minDocid);
+      this.invertedList.appendPosting (minDocid, positions, count);
+    }
+  }
+
+  /**
+   *  Merge the locations of the current document of several arguments
+   *  into one sorted array.  Each argument's locations are already
+   *  sorted, so this is a k-way merge:  the argument with the smallest
+   *  next location is kept at the front of a small heap.
+   *  @param matches The indexes of the arguments to merge.
+   *  @param numMatches The number of arguments to merge.
+   *  @param positions The array to store the locations in.  It must be
+   *         large enough for all of them.
+   */
+  private void mergeLocations (int[] matches, int numMatches, int[] positions) {
+
+    int count = 0;
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+    //  The common case is a single argument; just copy it.
+
+    if (numMatches == 1) {
+      QryIop iop = this.getArg (matches[0]);
+
+      while (iop.locIteratorHasMatch ()) {
+        positions[count++] = iop.locIteratorGetMatch ();
+        iop.locIteratorAdvance ();
       }
+      return;
+    }
+
+    //  Build a heap of the arguments, keyed by their next location.
+    //  Matching arguments always have at least one location.
+
+    int size = numMatches;
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+    for (int p = size / 2 - 1; p >= 0; p--) {
+      this.siftDownLocation (matches, size, p);
     }
+
+    while (size > 0) {
+      QryIop iop = this.getArg (matches[0]);
+
+      positions[count++] = iop.locIteratorGetMatch ();
+      iop.locIteratorAdvance ();
+
+      if (! iop.locIteratorHasMatch ()) {
+        matches[0] = matches[--size];
+      }
+
+      this.siftDownLocation (matches, size, 0);
+    }
+  }
+
+  /**
+   *  Restore the heap order of the k-way merge heap below position p.
+   */
+  private void siftDownLocation (int[] heap, int size, int p) {
+
+    int arg = heap[p];
+    int loc = (p < size) ? this.getArg (arg).locIteratorGetMatch () : 0;
+
+    while (true) {
+      int c = 2 * p + 1;
+
+      if (c >= size)
+        break;
+
+      int cLoc = this.getArg (heap[c]).locIteratorGetMatch ();
+
+      if (c + 1 < size) {
+        int c1Loc = this.getArg (heap[c + 1]).locIteratorGetMatch ();
+
+        if (c1Loc < cLoc) {
+          c++;
+          cLoc = c1Loc;
+        }
+      }
+
+      if (cLoc >= loc)
+        break;
+
+      heap[p] = heap[c];
+      p = c;
+    }
+
+    heap[p] = arg;
   }
 
 }
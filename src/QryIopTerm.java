@@ -4,6 +4,13 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+import retrieval_model.RetrievalModel;
+import support.DocIdBitmap;
+import support.IndexContext;
 import support.InvList;
 
 /**
@@ -12,12 +19,35 @@ import support.InvList;
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator copies its inverted list from the
+ *  index (or the postings cache) when it is initialized, like other
+ *  QryIop operators.  If the IndexContext that it searches selects
+ *  streaming mode, it instead iterates directly over Lucene's
+ *  PostingsEnum, so documents that a conjunction skips are never
+ *  copied, and locations are decoded only when a parent operator
+ *  (e.g., #NEAR/n) asks for them.  The df and ctf of a term are
+ *  index statistics, so they are available without materializing
+ *  the inverted list.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  //  Streaming-mode state.
+
+  private PostingsEnum postings = null;
+  private int streamDf = 0;
+  private int streamCtf = 0;
+  private int streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+  //  Locations of the current document, decoded on demand.
+
+  private int[] streamLocs = new int[0];
+  private int streamLocsDocid = Qry.INVALID_DOCID;
+  private int streamLocsIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -39,15 +69,279 @@ public class QryIopTerm extends QryIop {
 
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  In
+   *  streaming mode, the result is a positioned Lucene iterator.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    if (! this.context.isStreamingPostings ()) {
+      this.invertedList = this.context.getInvList(this.term, this.field);
+      return;
+    }
+
+    IndexReader reader = this.context.getIndexReader ();
+    BytesRef termBytes = new BytesRef (this.term);
+    Term t = new Term (this.field, termBytes);
+
+    this.invertedList = null;
+    this.postings = null;
+
+    this.streamDf = reader.docFreq (t);
+    this.streamCtf = (int) Math.max (0, reader.totalTermFreq (t));
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.streamLocsDocid = Qry.INVALID_DOCID;
+
+    if (this.streamDf < 1) {
+      return;
+    }
+
+    //  Positions are decoded lazily by Lucene, but asking only for
+    //  frequencies lets it skip the position data entirely.
+
+    if (this.positionsRequired) {
+      this.postings = MultiFields.getTermPositionsEnum (
+        reader, this.field, termBytes, PostingsEnum.POSITIONS);
+    } else {
+      this.postings = MultiFields.getTermDocsEnum (
+        reader, this.field, termBytes, PostingsEnum.FREQS);
+    }
+
+    if (this.postings != null) {
+      this.streamDocid = this.postings.nextDoc ();
+    }
+  }
+
+  /**
+   *  Indicates whether the TERM operator is reading postings directly
+   *  from the index.
+   *  @return True if the operator is in streaming mode.
+   */
+  private boolean isStreaming () {
+    return (this.invertedList == null);
+  }
+
+  //  ------------- docIterator (streaming mode) --------------------
+
+  /**
+   *  Get the documents that match the term as a bitmap.  In streaming
+   *  mode the bitmap is read from the postings iterator, so the
+   *  document iterator is exhausted afterwards.
+   *  @return The documents that match.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  public DocIdBitmap getDocIdBitmap () throws IOException {
+
+    if (! this.isStreaming ()) {
+      return super.getDocIdBitmap ();
+    }
+
+    DocIdBitmap bitmap = new DocIdBitmap ();
+
+    while (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS) {
+      bitmap.add (this.streamDocid);
+      this.streamDocid = this.postings.nextDoc ();
+    }
+
+    return bitmap;
+  }
+
+  /**
+   *  Advance the Lucene iterator to the first document whose id is at
+   *  least target.
+   *  @param target An internal document id.
+   *  @return The new current document, or NO_MORE_DOCS.
+   */
+  private int advance (int target) {
+    try {
+      return this.postings.advance (target);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.isStreaming ()) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if (this.streamDocid <= docid) {
+      this.streamDocid = this.advance (docid + 1);
+    }
+
+    this.streamLocsIndex = 0;
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.isStreaming ()) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if (this.streamDocid < docid) {
+      this.streamDocid = this.advance (docid);
+    }
+
+    this.streamLocsIndex = 0;
+  }
+
+  public void docIteratorFinish () {
+    if (! this.isStreaming ()) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  public int docIteratorGetMatch () {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatch ();
+    }
+
+    return this.streamDocid;
+  }
+
+  public int docIteratorGetMatchTf () {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.isStreaming ()) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    return (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  public int getCtf () {
+    return (this.isStreaming ()) ? this.streamCtf : super.getCtf ();
+  }
+
+  public int getDf () {
+    return (this.isStreaming ()) ? this.streamDf : super.getDf ();
+  }
+
+  //  The largest tf isn't known in streaming mode.
+
+  public int getMaxTf () {
+    return (this.isStreaming ()) ? Integer.MAX_VALUE : super.getMaxTf ();
+  }
+
+  //  ------------- locIterator (streaming mode) --------------------
+
+  /**
+   *  Decode the locations of the current document, if that hasn't
+   *  been done already.  Lucene can only decode them once, so they
+   *  are kept until the docIterator moves to another document.
+   */
+  private void decodeLocations () {
+
+    if (this.streamLocsDocid == this.streamDocid) {
+      return;
+    }
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.streamLocs.length) {
+        this.streamLocs = new int[Math.max (tf, this.streamLocs.length * 2)];
+      }
+
+      for (int j = 0; j < tf; j++) {
+        this.streamLocs[j] = this.postings.nextPosition ();
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.streamLocsDocid = this.streamDocid;
+  }
+
+  public int[] docIteratorGetMatchPositions () {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatchPositions ();
+    }
+
+    this.decodeLocations ();
+    return this.streamLocs;
+  }
+
+  public int docIteratorGetMatchPositionsOffset () {
+    return (this.isStreaming ()) ? 0 : super.docIteratorGetMatchPositionsOffset ();
+  }
+
+  public void locIteratorAdvance () {
+    if (! this.isStreaming ()) {
+      super.locIteratorAdvance ();
+      return;
+    }
+
+    this.streamLocsIndex ++;
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.isStreaming ()) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.decodeLocations ();
+
+    int tf = this.docIteratorGetMatchTf ();
+
+    while ((this.streamLocsIndex < tf) &&
+           (this.streamLocs[this.streamLocsIndex] <= loc)) {
+      this.streamLocsIndex ++;
+    }
+  }
+
+  public void locIteratorFinish () {
+    if (! this.isStreaming ()) {
+      super.locIteratorFinish ();
+      return;
+    }
+
+    this.streamLocsIndex = this.docIteratorGetMatchTf ();
+  }
+
+  public int locIteratorGetMatch () {
+    if (! this.isStreaming ()) {
+      return super.locIteratorGetMatch ();
+    }
+
+    this.decodeLocations ();
+    return this.streamLocs[this.streamLocsIndex];
+  }
+
+  public boolean locIteratorHasMatch () {
+    if (! this.isStreaming ()) {
+      return super.locIteratorHasMatch ();
+    }
+
+    return (this.streamLocsIndex < this.docIteratorGetMatchTf ());
+  }
+
+  /**
+   *  Get the term that this operator matches.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -1,6 +1,5 @@
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import support.InvList;
 
@@ -21,6 +20,21 @@ public class QryIopWindow extends QryIop {
 	/**
 	 * Evaluate the query operator; the result is an internal inverted list that may
 	 * be accessed via the internal iterators.
+	 * <p>
+	 * For each document that every argument matches, a window holds one location
+	 * of each argument, starting with the first ones. If the window is narrower
+	 * than the operator distance, it is a match: the largest location is
+	 * recorded, and every argument moves to its next location. Otherwise the
+	 * argument with the smallest location (the first one, if there is a tie)
+	 * moves to its next location. Evaluation of the document stops when an
+	 * argument that must move has no more locations.
+	 * </p><p>
+	 * The window's arguments are kept in a min-heap keyed by location and
+	 * argument index, and the largest location is tracked as locations increase,
+	 * so each step costs O(log n) instead of a scan of every argument. Locations
+	 * are read directly from the arguments' position arrays, and the scratch
+	 * buffers are reused, so no objects are allocated per document.
+	 * </p>
 	 * 
 	 * @throws IOException Error accessing the Lucene index.
 	 */
@@ -34,153 +48,169 @@ public class QryIopWindow extends QryIop {
 			return;
 		}
 
-		// Each pass of the loop adds 1 document to result inverted list
-		// until all of the argument inverted lists are depleted.
+		int n = this.args.size();
+
+		// The arguments' location slices for the current document: locs[i]
+		// from index loc[i] (the argument's location in the window) to end[i].
+
+		int[][] locs = new int[n][];
+		int[] loc = new int[n];
+		int[] end = new int[n];
+
+		// The heap of argument indexes.
+
+		int[] heap = new int[n];
+
+		// A scratch buffer for the matched locations of one document. It is
+		// reused for every document, and grows as necessary.
+
+		int[] positions = new int[16];
+
+		// Visit the rarest argument's documents first.
+
+		this.optimizeMatchAllOrder(null);
+
+		// Each pass of the loop adds at most 1 document to result inverted
+		// list, until one of the argument inverted lists is depleted.
 		
 		while (this.docIteratorHasMatchAll(null)) {
 
-			QryIop q_0 = (QryIop) this.args.get(0);
+			int docid = this.args.get(0).docIteratorGetMatch();
 
-			int start = -this.args.size();
-			int size = this.args.size();
+			// Start the window at the first location of each argument. lastCount
+			// is the number of arguments that are at their last location.
 
-			// the array of locations
-			int[] locs = new int[size];
+			int max = Integer.MIN_VALUE;
+			int lastCount = 0;
 
-			// iterate through all arguments 
-			for (int i = 0; i < size; i++) {
+			for (int i = 0; i < n; i++) {
 				QryIop q_i = (QryIop) this.args.get(i);
-				int docid = q_i.docIteratorGetMatch();
 
-				start += q_i.docIteratorGetMatchPosting().tf;
+				locs[i] = q_i.docIteratorGetMatchPositions();
+				loc[i] = q_i.docIteratorGetMatchPositionsOffset();
+				end[i] = loc[i] + q_i.docIteratorGetMatchTf();
+				max = Math.max(max, locs[i][loc[i]]);
 
-				// advance the doc id
-				q_i.docIteratorAdvanceTo(docid);
-
-				locs[i] = q_i.locIteratorGetMatch();
+				if (loc[i] + 1 == end[i]) {
+					lastCount++;
+				}
 
-				// advance the loc id
-				q_i.locIteratorAdvance();
+				heap[i] = i;
 			}
 
-			// the index that counts how many steps advanced
-			int index = 0;
+			this.heapify(heap, locs, loc);
 
-			// save the matched positions
-			List<Integer> positions = new ArrayList<>();
+			int count = 0;
 
-			boolean matchFound = false;
+			while (true) {
 
-			while (index < start) {
+				int top = heap[0];
 
-				int min_index = this.match(locs);
+				if (max - locs[top][loc[top]] < this.operatorDistance) {
 
-				// if there is a match
+					// A match. Record it, and move every argument.
 
-				if (min_index == -1) {
-					
-					int max = Integer.MIN_VALUE;
+					if (count == positions.length) {
+						positions = Arrays.copyOf(positions, count * 2);
+					}
+					positions[count++] = max;
 
-					// get the maximum value from the locs array					
-					for (int i = 0; i < locs.length; i++) {
-						if (locs[i] > max) max = locs[i];
+					if (lastCount > 0) {
+						break;
 					}
-					
-					// add the maximum value in the positions
-					positions.add(max);
-
-					// advance all matching locations
-					for (int i = 0; i < locs.length; i++) {
-
-						QryIop q_i = (QryIop) this.args.get(i);
-
-						if (q_i.locIteratorHasMatch()) {
-							
-							locs[i] = q_i.locIteratorGetMatch();
-							q_i.locIteratorAdvance();
-							index++;
-
-						} else {
-							// if one of the arguments is exhausted, break the inner loop
-							index = start;
-							matchFound = true;
-							break;
+
+					for (int i = 0; i < n; i++) {
+						max = Math.max(max, locs[i][++loc[i]]);
+
+						if (loc[i] + 1 == end[i]) {
+							lastCount++;
 						}
 					}
+
+					this.heapify(heap, locs, loc);
 				} else {
-					// if there is no match, advance the location at minimum index
-					
-					QryIop q = (QryIop) this.args.get(min_index);
-					
-					if (q.locIteratorHasMatch()) {
-						locs[min_index] = q.locIteratorGetMatch();
-						q.locIteratorAdvance();
-						index++;
-					} else {
-						// if it is exhausted, break the outer loop
+
+					// Not a match. Move the argument with the smallest location.
+
+					if (loc[top] + 1 == end[top]) {
 						break;
 					}
-				}
-			}
 
-			// check match again.
-			if (this.match(locs) == -1 && !matchFound) {
-				int max = Integer.MIN_VALUE;
-				for (int i = 0; i < locs.length; i++) {
-					if (locs[i] > max) max = locs[i];
+					max = Math.max(max, locs[top][++loc[top]]);
+
+					if (loc[top] + 1 == end[top]) {
+						lastCount++;
+					}
+
+					this.siftDown(heap, 0, locs, loc);
 				}
-				positions.add(max);
 			}
 
 			// add matched locations to the inverted list
-			if (positions.size() != 0) {
-				this.invertedList.appendPosting(q_0.docIteratorGetMatch(), positions);
+			if (count != 0) {
+				this.invertedList.appendPosting(docid, positions, count);
 			}
 
 			// advance the doc and continue
-			q_0.docIteratorAdvancePast(q_0.docIteratorGetMatch());
+			this.args.get(0).docIteratorAdvancePast(docid);
 		}
 	}
-	
+
 	/**
-	 * Check if there is a match
+	 * Arrange argument indexes into a min-heap ordered by isBefore.
 	 * 
-	 * @param locs An array contains a set of locations (loc id)
-	 * @return the minimum index if there is no match, otherwise return -1
+	 * @param heap The argument indexes.
+	 * @param locs The arguments' location arrays.
+	 * @param loc  The index of each argument's current location.
+	 */
+	private void heapify(int[] heap, int[][] locs, int[] loc) {
+		for (int p = heap.length / 2 - 1; p >= 0; p--) {
+			this.siftDown(heap, p, locs, loc);
+		}
+	}
+
+	/**
+	 * Move the argument at heap position p down until the heap is ordered.
 	 * 
-	 * @throws IOException Error accessing the Lucene index.
+	 * @param heap The heap of argument indexes.
+	 * @param p    A heap position.
+	 * @param locs The arguments' location arrays.
+	 * @param loc  The index of each argument's current location.
 	 */
-	private int match(int[] locs) {
-		
-		// save the minimum value of locs in the array
-		int min = Integer.MAX_VALUE;
-		// save the maximum value of locs in the array
-		int max = Integer.MIN_VALUE;
-		
-		// save the index of the minimum value
-		int min_index = 0;
-		
-		for (int i = 0; i < locs.length; i++) {
+	private void siftDown(int[] heap, int p, int[][] locs, int[] loc) {
+		int n = heap.length;
+		int i = heap[p];
 
-			// find the minimum value and its index
-			if (locs[i] < min) {
-				min = locs[i];
-				min_index = i;
+		while (true) {
+			int c = 2 * p + 1;
+
+			if (c >= n) {
+				break;
 			}
 
-			// find the maximum value
-			if (locs[i] > max) {
-				max = locs[i];
+			if ((c + 1 < n) && isBefore(heap[c + 1], heap[c], locs, loc)) {
+				c++;
 			}
-		}
 
-		// return the index of the minimum value if there is no match as #window
-		if (max - min >= this.operatorDistance) {
-			return min_index;
+			if (!isBefore(heap[c], i, locs, loc)) {
+				break;
+			}
+
+			heap[p] = heap[c];
+			p = c;
 		}
-		
-		// return -1, if there is a match
-		return -1;
+
+		heap[p] = i;
+	}
+
+	/**
+	 * Returns true if argument i's current location is before argument j's, or if
+	 * they are equal and i is an earlier argument.
+	 */
+	private static boolean isBefore(int i, int j, int[][] locs, int[] loc) {
+		int l_i = locs[i][loc[i]];
+		int l_j = locs[j][loc[j]];
+		return (l_i < l_j) || ((l_i == l_j) && (i < j));
 	}
 
 }
@@ -6,13 +6,14 @@
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.util.Version;
 
 import support.EnglishAnalyzerConfigurable;
-import support.PopData;
 
 /**
  * QryParser is an embarrassingly simplistic query parser. It has two primary
@@ -27,13 +28,13 @@ import support.PopData;
  * <li>createOperator: Use a string (e.g., #and) to create a node (e.g.,
  * QrySopAnd).
  *
- * <li>parseString: If the operator supports term weights (e.g., #wsum (0.5
- * apple 1 pie)), you must modify this method. For these operators, two
- * substrings (weight and term) are popped from the query string at each step,
- * instead of one.
+ * <li>parseOperator: If the operator supports term weights (e.g., #wsum (0.5
+ * apple 1 pie)), you must modify this method. For these operators, two tokens
+ * (weight and argument) are read from the query string at each step, instead
+ * of one.
  * </ul>
  * <p>
- * Add new document fields to the parser by modifying createTerms.
+ * Add new document fields to the parser by modifying addTerm.
  * </p>
  */
 
@@ -43,6 +44,56 @@ public class QryParser {
 
 	private static final EnglishAnalyzerConfigurable ANALYZER = new EnglishAnalyzerConfigurable();
 
+	/**
+	 * The query string that is being parsed, and the offset of the next character
+	 * to read. Each query string is parsed by its own QryParser object.
+	 */
+	private final char[] chars;
+	private int pos = 0;
+
+	/**
+	 * The raw term tokens of the query, and their fields, in the order that
+	 * they occur.
+	 */
+	private final List<String> terms = new ArrayList<String>();
+	private final List<String> fields = new ArrayList<String>();
+
+	/**
+	 * Analyzed forms of raw query terms, e.g., "Running" becomes {"run"}, shared
+	 * by all threads. Queries repeat terms, so a term is usually analyzed just
+	 * once. The memo stops growing when it has MAX_ANALYZED_TERMS entries.
+	 */
+	private static final int MAX_ANALYZED_TERMS = 100000;
+	private static final ConcurrentHashMap<String, String[]> ANALYZED_TERMS = new ConcurrentHashMap<String, String[]>();
+
+	/**
+	 * A query operator whose arguments have been parsed, but whose terms haven't
+	 * been analyzed yet.
+	 */
+	private static class ParsedOperator {
+		private final Qry operator;
+		private final List<ParsedArg> args = new ArrayList<ParsedArg>();
+
+		private ParsedOperator(Qry operator) {
+			this.operator = operator;
+		}
+	}
+
+	/**
+	 * A parsed argument: either a subquery, or the index of a term token.
+	 */
+	private static class ParsedArg {
+		private final double weight;
+		private final ParsedOperator subquery;
+		private final int term;
+
+		private ParsedArg(double weight, ParsedOperator subquery, int term) {
+			this.weight = weight;
+			this.subquery = subquery;
+			this.term = term;
+		}
+	}
+
 	// -------------------- Initialization -------------------------
 
 	static {
@@ -51,33 +102,177 @@ public class QryParser {
 		ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 	}
 
+	/**
+	 * @param queryString The query string to parse.
+	 */
+	private QryParser(String queryString) {
+		this.chars = queryString.toCharArray();
+	}
+
 	// ----------- Methods, in alphabetical order ------------------
 
 	/**
-	 * Count the number of occurrences of character c in string s.
+	 * Record a term token, to be analyzed after the whole query is parsed. The
+	 * token may contain dashes or other punctuation (e.g., near-death) and/or a
+	 * field name (e.g., apple.title).
+	 * 
+	 * @parameter token The token consumed from the query string.
+	 * @parameter offset The offset of the token in the query string.
+	 * @return The index of the term in the query's list of terms.
+	 */
+	private int addTerm(String token, int offset) {
+
+		// Split the token into a term and a field.
+
+		int delimiter = token.indexOf('.');
+		String field = null;
+		String term = null;
+
+		if (delimiter < 0) { // .body is the default field
+			field = "body";
+			term = token;
+		} else { // Remove the field from the token
+			field = token.substring(delimiter + 1).toLowerCase();
+			term = token.substring(0, delimiter);
+		}
+
+		// Confirm that the field is a known field.
+
+		if ((field.compareTo("url") != 0) && (field.compareTo("keywords") != 0) && (field.compareTo("title") != 0)
+				&& (field.compareTo("body") != 0) && (field.compareTo("inlink") != 0)) {
+			syntaxError("Unknown field " + token, offset);
+		}
+
+		this.terms.add(term);
+		this.fields.add(field);
+		return this.terms.size() - 1;
+	}
+
+	/**
+	 * Lexical processing, stopwords, stemming. Each term may produce several
+	 * analyzed terms (e.g., "near-death" produces "near" and "death"), or none
+	 * (e.g., stopwords). Terms that were analyzed before are found in the memo;
+	 * the others are analyzed together, in one token stream.
 	 * 
-	 * @param c A character.
-	 * @param s A string.
+	 * @param terms Raw query terms.
+	 * @return The analyzed forms of each term.
+	 * @throws IOException Error accessing the Lucene index.
 	 */
-	private static int countChars(String s, char c) {
+	private static String[][] analyzeTerms(List<String> terms) throws IOException {
+
+		int n = terms.size();
+		String[][] analyzed = new String[n][];
+
+		// Find the terms that must be analyzed, and where each one starts in
+		// the text that is analyzed. Whitespace separates them, and analysis
+		// never joins tokens across whitespace.
+
+		int[] pending = new int[n];
+		int[] starts = new int[n];
+		int m = 0;
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < n; i++) {
+			analyzed[i] = ANALYZED_TERMS.get(terms.get(i));
+
+			if (analyzed[i] == null) {
+				if (m > 0) {
+					text.append(' ');
+				}
+				pending[m] = i;
+				starts[m] = text.length();
+				text.append(terms.get(i));
+				m++;
+			}
+		}
+
+		if (m == 0) {
+			return analyzed;
+		}
+
+		// Assign each analyzed token to the term that it started in. Token
+		// offsets increase, so the terms are visited in order.
 
-		int count = 0;
+		List<List<String>> tokens = new ArrayList<List<String>>(m);
 
-		for (int i = 0; i < s.length(); i++) {
-			if (s.charAt(i) == c) {
-				count++;
+		for (int j = 0; j < m; j++) {
+			tokens.add(new ArrayList<String>(1));
+		}
+
+		TokenStream tokenStream = ANALYZER.tokenStream("dummyField", new StringReader(text.toString()));
+		CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+		OffsetAttribute offsetAttribute = tokenStream.addAttribute(OffsetAttribute.class);
+		tokenStream.reset();
+
+		int j = 0;
+
+		while (tokenStream.incrementToken()) {
+			int start = offsetAttribute.startOffset();
+
+			while ((j + 1 < m) && (start >= starts[j + 1])) {
+				j++;
 			}
+
+			tokens.get(j).add(charTermAttribute.toString());
 		}
 
-		return count;
+		tokenStream.end();
+		tokenStream.close();
+
+		for (j = 0; j < m; j++) {
+			String term = terms.get(pending[j]);
+			String[] t = tokens.get(j).toArray(new String[tokens.get(j).size()]);
+
+			analyzed[pending[j]] = t;
+
+			if (ANALYZED_TERMS.size() < MAX_ANALYZED_TERMS) {
+				ANALYZED_TERMS.put(term, t);
+			}
+		}
+
+		return analyzed;
+	}
+
+	/**
+	 * Build the query tree of a parsed query operator, after its terms are
+	 * analyzed.
+	 * 
+	 * @param p        The parsed query operator.
+	 * @param analyzed The analyzed forms of the query's terms.
+	 * @return The query tree.
+	 * @throws IllegalArgumentException The query is not well-formed.
+	 */
+	private Qry buildQuery(ParsedOperator p, String[][] analyzed) throws IllegalArgumentException {
+
+		Qry queryTree = p.operator;
+
+		for (ParsedArg arg : p.args) {
+			Qry[] qargs = null;
+
+			if (arg.subquery != null) {
+				qargs = new Qry[] { this.buildQuery(arg.subquery, analyzed) };
+			} else {
+				qargs = createTerms(analyzed[arg.term], this.fields.get(arg.term));
+			}
+
+			// Add the argument(s) to the query tree.
+
+			for (int i = 0; i < qargs.length; i++) {
+				qargs[i].weight = arg.weight;
+				queryTree.appendArg(qargs[i]);
+			}
+		}
+
+		return queryTree;
 	}
 
 	/**
 	 * Create the desired query operator.
 	 * 
 	 * @parameter operator The operator name.
+	 * @parameter offset The offset of the operator name in the query string.
 	 */
-	private static Qry createOperator(String operatorName) {
+	private static Qry createOperator(String operatorName, int offset) {
 
 		Qry operator = null;
 		int operatorDistance = 0;
@@ -132,7 +327,7 @@ public class QryParser {
 			break;
 
 		default:
-			syntaxError("Unknown query operator " + operatorName);
+			syntaxError("Unknown query operator " + operatorName, offset);
 		}
 
 		operator.setDisplayName(operatorName);
@@ -141,47 +336,20 @@ public class QryParser {
 	}
 
 	/**
-	 * Create one or more terms from a token. The token may contain dashes or other
-	 * punctuation b(e.g., near-death) and/or a field name (e.g., apple.title).
+	 * Create terms from the analyzed forms of one query token.
 	 * 
-	 * @parameter token The token consumed from the query string.
-	 * @throws IOException Error accessing the Lucene index.
+	 * @parameter terms The analyzed terms.
+	 * @parameter field The field that the terms match.
 	 */
-	private static Qry[] createTerms(String token) throws IOException {
+	private static Qry[] createTerms(String[] terms, String field) {
 
-		// Split the token into a term and a field.
-
-		int delimiter = token.indexOf('.');
-		String field = null;
-		String term = null;
-
-		if (delimiter < 0) { // .body is the default field
-			field = "body";
-			term = token;
-		} else { // Remove the field from the token
-			field = token.substring(delimiter + 1).toLowerCase();
-			term = token.substring(0, delimiter);
-		}
+		Qry qterms[] = new Qry[terms.length];
 
-		// Confirm that the field is a known field.
-
-		if ((field.compareTo("url") != 0) && (field.compareTo("keywords") != 0) && (field.compareTo("title") != 0)
-				&& (field.compareTo("body") != 0) && (field.compareTo("inlink") != 0)) {
-			syntaxError("Unknown field " + token);
+		for (int j = 0; j < terms.length; j++) {
+			qterms[j] = new QryIopTerm(terms[j], field);
 		}
 
-		// Lexical processing, stopwords, stemming. A loop is used
-		// just in case a term (e.g., "near-death") gets tokenized into
-		// multiple terms (e.g., "near" and "death").
-
-		String t[] = tokenizeString(term);
-		Qry terms[] = new Qry[t.length];
-
-		for (int j = 0; j < t.length; j++) {
-			terms[j] = new QryIopTerm(t[j], field);
-		}
-
-		return terms;
+		return qterms;
 	}
 
 	/**
@@ -196,32 +364,11 @@ public class QryParser {
 
 		Qry q = parseString(queryString); // An exact parse
 		q = optimizeQuery(q); // An optimized parse
-		return q;
-	}
 
-	/**
-	 * Get the index of the right parenenthesis that balances the left-most
-	 * parenthesis. Return -1 if it doesn't exist.
-	 * 
-	 * @param s A string containing a query.
-	 */
-	private static int indexOfBalencingParen(String s) {
-
-		int depth = 0;
-
-		for (int i = 0; i < s.length(); i++) {
-			if (s.charAt(i) == '(') {
-				depth++;
-			} else if (s.charAt(i) == ')') {
-				depth--;
-
-				if (depth == 0) {
-					return i;
-				}
-			}
+		if (q != null) {
+			shareSubexpressions(q);
 		}
-
-		return -1;
+		return q;
 	}
 
 	/**
@@ -277,147 +424,202 @@ public class QryParser {
 	}
 
 	/**
-	 * Parse a query string into a query tree.
+	 * Parse a query operator and its arguments, starting at the current offset.
+	 * Subqueries are parsed recursively. When it returns, the offset is after the
+	 * operator's closing parenthesis.
 	 * 
-	 * @param queryString The query string, in an Indri-style query language.
-	 * @return Qry The query tree for the parsed query.
-	 * @throws IOException              Error accessing the Lucene index.
+	 * @return The parsed operator.
 	 * @throws IllegalArgumentException Query syntax error.
 	 */
-	private static Qry parseString(String queryString) throws IOException, IllegalArgumentException {
+	private ParsedOperator parseOperator() throws IllegalArgumentException {
 
-		// This simple parser is sensitive to parenthensis placement, so
-		// check for basic errors first.
+		// The operator name, e.g., "#near/3", is followed by '('.
 
-		queryString = queryString.trim(); // The last character should be ')'
+		int start = this.pos;
+		String operatorName = this.readToken();
 
-		if ((countChars(queryString, '(') == 0) || (countChars(queryString, '(') != countChars(queryString, ')'))
-				|| (indexOfBalencingParen(queryString) != (queryString.length() - 1))) {
-			syntaxError("Missing, unbalanced, or misplaced parentheses");
+		if (operatorName.length() == 0) {
+			syntaxError("Expected a query operator", start);
 		}
 
-		// The query language is prefix-oriented, so the query string can
-		// be processed left to right. At each step, a substring is
-		// popped from the head (left) of the string, and is converted to
-		// a Qry object that is added to the query tree. Subqueries are
-		// handled via recursion.
-
-		// Find the left-most query operator and start the query tree.
+		this.skipWhitespace();
 
-		String[] substrings = queryString.split("[(]", 2);
-		Qry queryTree = createOperator(substrings[0].trim());
+		if ((this.pos >= this.chars.length) || (this.chars[this.pos] != '(')) {
+			syntaxError("Expected '(' after " + operatorName, this.pos);
+		}
 
-		// Start consuming queryString by removing the query operator and
-		// its terminating ')'. queryString is always the part of the
-		// query that hasn't been processed yet.
+		this.pos++;
 
-		queryString = substrings[1];
-		queryString = queryString.substring(0, queryString.lastIndexOf(")")).trim();
+		ParsedOperator parsed = new ParsedOperator(createOperator(operatorName, start));
+		boolean weighted = (parsed.operator instanceof QrySopWAnd) || (parsed.operator instanceof QrySopWSum);
 
 		// Each pass below handles one argument to the query operator.
 		// Note: An argument can be a token that produces multiple terms
 		// (e.g., "near-death") or a subquery (e.g., "#and (a b c)").
-		// Recurse on subqueries.
 
-		while (queryString.length() > 0) {
+		while (true) {
 
-			// If the operator uses weighted query arguments, each pass of
-			// this loop must handle "weight arg". Handle the weight first.
+			this.skipWhitespace();
 
-			// STUDENT HW2 CODE GOES HERE
+			if (this.pos >= this.chars.length) {
+				syntaxError("Missing ')' for " + operatorName, start);
+			}
 
-			// Now handle the argument (which could be a subquery).
+			if (this.chars[this.pos] == ')') {
+				this.pos++;
+				return parsed;
+			}
+
+			// If the operator uses weighted query arguments, each argument
+			// is preceded by its weight.
 
-			Qry[] qargs = null;
-			PopData<String, String> p;
-			
 			double weight = 0.0;
-			
-			// if the operator is #wand or #wsum, assign the weight to the Qry and delete
-			// it from the string
-			if (queryTree instanceof QrySopWAnd || queryTree instanceof QrySopWSum) {
-				
-				// get the weight argument
-				p = popTerm(queryString);
-				
-				// try to convert the weight from string type to double type
-				try{
-					weight = Double.parseDouble(p.getPopped());
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
 
-				// delete the weight argument from the string.
-				queryString = p.getRemaining().trim();
+			if (weighted) {
+				weight = this.parseWeight();
+				this.skipWhitespace();
+
+				if ((this.pos >= this.chars.length) || (this.chars[this.pos] == ')')) {
+					syntaxError("Missing argument after weight", this.pos);
+				}
 			}
 
-			if (queryString.charAt(0) == '#') { // Subquery
-				p = popSubquery(queryString);
-				qargs = new Qry[1];
-				qargs[0] = parseString(p.getPopped());
-			} else { // Term
-				p = popTerm(queryString);
-				qargs = createTerms(p.getPopped());
-			}			
-			
-			queryString = p.getRemaining().trim(); // Consume the arg
+			// Now handle the argument (which could be a subquery).
 
-			// Add the argument(s) to the query tree.
+			int argStart = this.pos;
 
-			for (int i = 0; i < qargs.length; i++) {
+			if (this.chars[this.pos] == '#') { // Subquery
+				parsed.args.add(new ParsedArg(weight, this.parseOperator(), -1));
+			} else { // Term
+				String token = this.readToken();
 
-				// HANDLE WEIGHTS IN HW2
-				qargs[i].weight = weight;
-				
-				queryTree.appendArg(qargs[i]);
+				if (token.length() == 0) {
+					syntaxError("Unexpected '" + this.chars[this.pos] + "'", this.pos);
+				}
+
+				parsed.args.add(new ParsedArg(weight, null, this.addTerm(token, argStart)));
 			}
 		}
+	}
 
-		return queryTree;
+	/**
+	 * Parse a query string into a query tree.
+	 * 
+	 * @param queryString The query string, in an Indri-style query language.
+	 * @return Qry The query tree for the parsed query.
+	 * @throws IOException              Error accessing the Lucene index.
+	 * @throws IllegalArgumentException Query syntax error.
+	 */
+	private static Qry parseString(String queryString) throws IOException, IllegalArgumentException {
+
+		// The query language is prefix-oriented, so the query string is
+		// parsed in one pass from left to right. The query must be a
+		// single query operator.
+
+		QryParser parser = new QryParser(queryString);
+
+		parser.skipWhitespace();
+		ParsedOperator parsed = parser.parseOperator();
+		parser.skipWhitespace();
+
+		if (parser.pos < parser.chars.length) {
+			syntaxError("Unexpected text after the query", parser.pos);
+		}
+
+		// Analyze all of the query's terms at once, and then build the
+		// query tree.
+
+		String[][] analyzed = analyzeTerms(parser.terms);
+		return parser.buildQuery(parsed, analyzed);
 	}
 
 	/**
-	 * Remove a subQuery from an argument string. Return the subquery and the
-	 * modified argument string.
+	 * Parse a weight of a weighted query argument, e.g., "0.4" in #WSUM (0.4 blue
+	 * 0.6 skies).
 	 * 
-	 * @param String A partial query argument string, e.g., "#and(a b) c d".
-	 * @return PopData<String,String> The subquery string and the modified argString
-	 *         (e.g., "#and(a b)" and "c d".
+	 * @return The weight.
+	 * @throws IllegalArgumentException Query syntax error.
 	 */
-	static private PopData<String, String> popSubquery(String argString) {
+	private double parseWeight() throws IllegalArgumentException {
 
-		int i = indexOfBalencingParen(argString);
+		int start = this.pos;
+		String token = this.readToken();
 
-		if (i < 0) { // Query syntax error. The parser
-			i = argString.length(); // handles it. Here, just don't fail.
+		try {
+			return Double.parseDouble(token);
+		} catch (NumberFormatException e) {
+			syntaxError("Expected a weight, not '" + token + "'", start);
+			return 0.0;
 		}
+	}
 
-		String subquery = argString.substring(0, i + 1);
-		argString = argString.substring(i + 1);
+	/**
+	 * Read a token (a term, weight, or operator name) that starts at the current
+	 * offset. A token ends at whitespace or a parenthesis.
+	 * 
+	 * @return The token, which is empty if the current character ends tokens.
+	 */
+	private String readToken() {
 
-		return new PopData<String, String>(subquery, argString);
+		int start = this.pos;
+
+		while ((this.pos < this.chars.length) && !Character.isWhitespace(this.chars[this.pos])
+				&& (this.chars[this.pos] != '(') && (this.chars[this.pos] != ')')) {
+			this.pos++;
+		}
+
+		return new String(this.chars, start, this.pos - start);
 	}
 
 	/**
-	 * Remove a term from an argument string. Return the term and the modified
-	 * argument string.
+	 * Let identical inverted list operators in a query share one inverted list.
 	 * 
-	 * @param String A partial query argument string, e.g., "a b c d".
-	 * @return PopData<String,String> The term string and the modified argString
-	 *         (e.g., "a" and "b c d".
+	 * @param q An optimized query tree that hasn't been initialized.
 	 */
-	static private PopData<String, String> popTerm(String argString) {
+	static void shareSubexpressions(Qry q) {
+		shareSubexpressions(q, new HashMap<String, QryIop>());
+	}
 
-		String[] substrings = argString.split("[ \t\n\r]+", 2);
-		String token = substrings[0];
+	/**
+	 * Find inverted list operators that are identical to an operator earlier in
+	 * the query, for example 'a' in '#WAND (0.7 #AND (a b) 0.3 #NEAR/1 (a b))', so
+	 * that they share its inverted list instead of evaluating their own. Two
+	 * operators are identical if they have the same string form, which includes
+	 * the terms, fields, operator names, and distances. Operators are visited in
+	 * the order that initialization visits them, so the first one is always
+	 * evaluated first. Arguments of a shared operator are not evaluated at all.
+	 * 
+	 * @param q    The query (or subquery).
+	 * @param seen The operators found so far, by string form.
+	 */
+	private static void shareSubexpressions(Qry q, Map<String, QryIop> seen) {
+
+		if (q instanceof QryIop) {
+			QryIop iop = (QryIop) q;
+			String key = iop.toString();
+			QryIop first = seen.get(key);
+
+			iop.setSharedWith(first);
+
+			if (first != null) {
+				return;
+			}
 
-		if (substrings.length < 2) { // Is this the last argument?
-			argString = "";
-		} else {
-			argString = substrings[1];
+			seen.put(key, iop);
 		}
 
-		return new PopData<String, String>(substrings[0], argString);
+		for (Qry q_i : q.args) {
+			shareSubexpressions(q_i, seen);
+		}
+	}
+
+	/**
+	 * Advance the current offset past whitespace.
+	 */
+	private void skipWhitespace() {
+		while ((this.pos < this.chars.length) && Character.isWhitespace(this.chars[this.pos])) {
+			this.pos++;
+		}
 	}
 
 	/**
@@ -430,6 +632,18 @@ public class QryParser {
 		throw new IllegalArgumentException("Syntax Error: " + errorString);
 	}
 
+	/**
+	 * Throw an error specialized for query parsing syntax errors, reporting
+	 * where in the query string the error was found.
+	 * 
+	 * @param errorString A description of the error.
+	 * @param offset      The offset of the error in the query string.
+	 * @throws IllegalArgumentException The query contained a syntax error
+	 */
+	static private void syntaxError(String errorString, int offset) throws IllegalArgumentException {
+		syntaxError(errorString + " at offset " + offset);
+	}
+
 	/**
 	 * Given part of a query string, returns an array of terms with stopwords
 	 * removed and the terms stemmed using the Krovetz stemmer. Use this method to
@@ -441,7 +655,6 @@ public class QryParser {
 	 */
 	public static String[] tokenizeString(String query) throws IOException {
 
-		TokenStreamComponents comp = ANALYZER.createComponents("dummyField");
 		TokenStream tokenStream = ANALYZER.tokenStream("dummyField", new StringReader(query));
 		CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
 		tokenStream.reset();
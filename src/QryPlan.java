@@ -0,0 +1,119 @@
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ * An immutable description of a parsed and optimized query tree. A Qry tree
+ * holds iterator state, so it can only be evaluated once; a QryPlan records
+ * just the operators, their parameters, weights, and arguments, so that any
+ * number of fresh query trees can be instantiated from it without parsing or
+ * analyzing the query string again.
+ */
+public class QryPlan {
+
+	// --------------- Constants and variables ---------------------
+
+	private final Class<? extends Qry> type;
+	private final String displayName;
+	private final double weight;
+
+	// Operator parameters. Only the operators that use them set them.
+
+	private final String term;
+	private final String field;
+	private final int distance;
+
+	private final QryPlan[] args;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Record the structure of a query tree.
+	 * 
+	 * @param q A query tree that was produced by QryParser.getQuery.
+	 * @throws IllegalArgumentException The tree contains an unknown operator.
+	 */
+	public QryPlan(Qry q) throws IllegalArgumentException {
+		this.type = q.getClass();
+		this.displayName = q.getDisplayName();
+		this.weight = q.weight;
+
+		if (q instanceof QryIopTerm) {
+			this.term = ((QryIopTerm) q).getTerm();
+			this.field = ((QryIopTerm) q).getField();
+		} else {
+			this.term = null;
+			this.field = null;
+		}
+
+		if (q instanceof QryIopNear) {
+			this.distance = ((QryIopNear) q).operatorDistance;
+		} else if (q instanceof QryIopWindow) {
+			this.distance = ((QryIopWindow) q).operatorDistance;
+		} else {
+			this.distance = 0;
+		}
+
+		this.args = new QryPlan[q.args.size()];
+
+		for (int i = 0; i < this.args.length; i++) {
+			this.args[i] = new QryPlan(q.args.get(i));
+		}
+
+		// Fail now, not when the plan is used.
+
+		this.newOperator();
+	}
+
+	/**
+	 * Create a query tree that is identical to the tree that the plan was
+	 * created from, before initialization.
+	 * 
+	 * @return A new query tree.
+	 */
+	public Qry instantiate() {
+		Qry q = this.newOperator();
+
+		q.setDisplayName(this.displayName);
+		q.weight = this.weight;
+
+		for (QryPlan arg : this.args) {
+			q.appendArg(arg.instantiate());
+		}
+
+		return q;
+	}
+
+	/**
+	 * Create an operator of the recorded type, without arguments.
+	 * 
+	 * @return The new query operator.
+	 * @throws IllegalArgumentException The type is unknown.
+	 */
+	private Qry newOperator() throws IllegalArgumentException {
+		if (this.type == QryIopTerm.class) {
+			return new QryIopTerm(this.term, this.field);
+		} else if (this.type == QryIopSyn.class) {
+			return new QryIopSyn();
+		} else if (this.type == QryIopNear.class) {
+			return new QryIopNear(this.distance);
+		} else if (this.type == QryIopWindow.class) {
+			return new QryIopWindow(this.distance);
+		} else if (this.type == QrySopAnd.class) {
+			return new QrySopAnd();
+		} else if (this.type == QrySopOr.class) {
+			return new QrySopOr();
+		} else if (this.type == QrySopSum.class) {
+			return new QrySopSum();
+		} else if (this.type == QrySopWAnd.class) {
+			return new QrySopWAnd();
+		} else if (this.type == QrySopWSum.class) {
+			return new QrySopWSum();
+		} else if (this.type == QrySopScore.class) {
+			return new QrySopScore();
+		}
+
+		throw new IllegalArgumentException("Query plans don't support " + this.type.getName());
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import retrieval_model.RetrievalModel;
+
+/**
+ * A size-bounded cache of query plans, keyed by retrieval model and
+ * normalized query string. Query logs repeat popular queries often, and
+ * parsing a query (splitting the string, running the Lucene analyzer, and
+ * optimizing the tree) costs the same every time. A cached plan is
+ * instantiated into a fresh query tree instead.
+ * <p>
+ * Query strings are normalized by collapsing whitespace, so queries that
+ * differ only in spacing share a plan. When the cache is full, the least
+ * recently used plans are evicted. The cache is safe to use from several
+ * threads.
+ * </p>
+ */
+public class QryPlanCache {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The maximum number of plans to keep.
+	 */
+	private final int capacity;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Cached plans in least-recently-used order.
+	 */
+	private final LinkedHashMap<String, QryPlan> plans = new LinkedHashMap<String, QryPlan>(16, 0.75f, true);
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param capacity The maximum number of plans to keep. A capacity of 0
+	 *                 disables caching.
+	 */
+	public QryPlanCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get a query tree for a query string, parsing the string only if its plan
+	 * isn't cached. The tree is new, so it may be initialized and evaluated.
+	 * 
+	 * @param qString The query string, including its default operator.
+	 * @param model   The retrieval model that the query is for.
+	 * @return The query tree, or null if the query is empty.
+	 * @throws IOException              Error accessing the Lucene index.
+	 * @throws IllegalArgumentException Query syntax error.
+	 */
+	public Qry getQuery(String qString, RetrievalModel model) throws IOException, IllegalArgumentException {
+
+		if (this.capacity <= 0) {
+			return QryParser.getQuery(qString);
+		}
+
+		String key = model.getClass().getName() + "\n" + normalize(qString);
+		QryPlan plan;
+
+		synchronized (this) {
+			plan = this.plans.get(key);
+
+			if (plan != null) {
+				this.hits++;
+			} else {
+				this.misses++;
+			}
+		}
+
+		if (plan != null) {
+			Qry q = plan.instantiate();
+			QryParser.shareSubexpressions(q);
+			return q;
+		}
+
+		// Parse without holding the lock, so that other threads are not
+		// blocked by the analyzer. Empty queries are not cached.
+
+		Qry q = QryParser.getQuery(qString);
+
+		if (q != null) {
+			this.put(key, new QryPlan(q));
+		}
+
+		return q;
+	}
+
+	/**
+	 * Normalize the whitespace in a query string: remove it at the ends and
+	 * inside parentheses, and collapse the rest to single spaces. The parser
+	 * ignores these differences.
+	 * 
+	 * @param qString A query string.
+	 * @return The normalized query string.
+	 */
+	static String normalize(String qString) {
+		return qString.trim().replaceAll("\\s+", " ").replace("( ", "(").replace(" )", ")");
+	}
+
+	/**
+	 * Add a plan to the cache, evicting the least recently used plan if the
+	 * cache is full.
+	 * 
+	 * @param key  The cache key.
+	 * @param plan The query plan.
+	 */
+	private synchronized void put(String key, QryPlan plan) {
+
+		if (this.plans.containsKey(key)) {
+			return;
+		}
+
+		if (this.plans.size() >= this.capacity) {
+			Iterator<String> it = this.plans.keySet().iterator();
+			it.next();
+			it.remove();
+			this.evictions++;
+		}
+
+		this.plans.put(key, plan);
+	}
+
+	/**
+	 * @return The number of requests satisfied from the cache.
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return The number of requests that parsed the query string.
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return The fraction of requests satisfied from the cache, or 0 if there
+	 *         were no requests.
+	 */
+	public synchronized double getHitRate() {
+		long requests = this.hits + this.misses;
+		return (requests == 0) ? 0.0 : (double) this.hits / requests;
+	}
+
+	/**
+	 * Get a one-line summary of the cache's activity.
+	 * 
+	 * @return The summary.
+	 */
+	@Override
+	public synchronized String toString() {
+		return ("hits: " + this.hits + ", misses: " + this.misses + ", hit rate: "
+				+ String.format("%.3f", this.getHitRate()) + ", evictions: " + this.evictions + ", entries: "
+				+ this.plans.size() + " / " + this.capacity);
+	}
+}
@@ -3,8 +3,12 @@
  *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 import retrieval_model.RetrievalModel;
+import support.DocIdBitmap;
+import support.FilterCache;
+import support.IndexContext;
 
 /**
  * The root class of all query operators that use a retrieval model to determine
@@ -13,9 +17,59 @@ import retrieval_model.RetrievalModel;
  * recognize any nested query operator that returns a document scores (e.g.,
  * #AND (a #OR(b c)). Second, it is a place to store data structures and methods
  * that are common to all query operators that calculate document scores.
+ * <p>
+ * Operators whose score is a sum of argument scores (BM25 #SUM), or a
+ * weighted product of them (Indri #AND and #WAND, which are sums in log
+ * space), may use MaxScore pruning when a score threshold is set. A
+ * document's score is bounded by a base bound plus a gain for each argument
+ * that matches it. The arguments are sorted by their gain bounds. The
+ * longest prefix of that order whose bounds, plus the base, add up to less
+ * than the threshold are <i>non-essential</i>: a document that matches only
+ * non-essential arguments can't reach the threshold. Candidates are drawn
+ * from the essential arguments only, and the non-essential arguments are
+ * checked, best bound first, only while the candidate can still reach the
+ * threshold. Documents that are returned are scored exactly as they are
+ * without pruning, so results don't change.
+ * </p>
  */
 public abstract class QrySop extends Qry {
 
+	/**
+	 * Bounds are computed in a different order than scores, so a document is
+	 * skipped only if its bound is below the threshold by more than this
+	 * relative amount.
+	 */
+	private static final double BOUND_SLACK = 1e-9;
+
+	/**
+	 * The score that a document must reach to be useful to the caller, e.g.,
+	 * the score of the k'th best document found so far. Operators that can
+	 * bound their scores may skip documents that can't reach it. Documents
+	 * that tie it must not be skipped.
+	 */
+	protected double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+	// MaxScore pruning. boundOrder is the argument indexes in increasing
+	// order of their gain bounds, or null if the operator can't prune.
+	// boundSums[i] is the base bound plus the first i gain bounds.
+	// logExponents is null for sums, or the exponent of each argument for
+	// weighted products; defaultBounds are then the arguments' default score
+	// bounds.
+
+	private int[] boundOrder = null;
+	private double[] gainBounds;
+	private double[] boundSums;
+	private double[] logExponents = null;
+	private double[] defaultBounds;
+	private boolean useBlockBounds = false;
+
+	/**
+	 * Arguments boundOrder[firstEssential..] are essential for the threshold
+	 * that the partition was computed for.
+	 */
+	private int firstEssential = 0;
+	private double partitionThreshold = Double.NEGATIVE_INFINITY;
+
 	/**
 	 * Get a score for the document that docIteratorHasMatch matched.
 	 * 
@@ -27,18 +81,416 @@ public abstract class QrySop extends Qry {
 	
 	public abstract double getDefaultScore(RetrievalModel r, int docid) throws IOException;
 
+	/**
+	 * Get an upper bound on the score of any document. Operators that can't
+	 * bound their scores return positive infinity.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r) {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Get an upper bound on the default score of any document. Operators that
+	 * can't bound their default scores return positive infinity.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxDefaultScore(RetrievalModel r) {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Indicates whether getMaxScore(r, docid) can give bounds for blocks of
+	 * documents that are tighter than getMaxScore(r).
+	 * 
+	 * @return True if block upper bounds are available.
+	 */
+	public boolean hasBlockMaxScores() {
+		return false;
+	}
+
+	/**
+	 * Get the last docid of the block of documents that starts at docid. All
+	 * documents in the block have the same score bound, getMaxScore(r, docid).
+	 * 
+	 * @param docid An internal document id.
+	 * @return The last docid of the block.
+	 */
+	public int getBlockEnd(int docid) {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Get an upper bound on the score of any document from docid to
+	 * getBlockEnd(docid). Operators that can't bound blocks of documents
+	 * return getMaxScore(r).
+	 * 
+	 * @param r     The retrieval model that determines how scores are
+	 *              calculated.
+	 * @param docid An internal document id.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r, int docid) {
+		return this.getMaxScore(r);
+	}
+
+	/**
+	 * Set the score that a document must reach to be useful to the caller. The
+	 * threshold may only increase while the query is being evaluated.
+	 * 
+	 * @param threshold The score threshold.
+	 */
+	public void setScoreThreshold(double threshold) {
+		this.scoreThreshold = threshold;
+	}
+
+	/**
+	 * Indicates whether the query operator can be evaluated as a bitmap by
+	 * getMatchBitmap. That requires every match to have the same score in the
+	 * retrieval model (e.g., the unranked Boolean model).
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return True if getMatchBitmap may be called.
+	 */
+	public boolean hasMatchBitmap(RetrievalModel r) {
+		return false;
+	}
+
+	/**
+	 * Get the documents that the query operator matches as a bitmap. This
+	 * evaluates the query with set operations instead of document iterators,
+	 * and initializes only the parts of the query that aren't in the filter
+	 * cache. The query must not be initialized or iterated afterwards.
+	 * 
+	 * @param context The index to search
+	 * @param r       The retrieval model that determines what is a match
+	 * @param filters Bitmaps of repeated subtrees. Only hasMatchBitmap
+	 *                operators are cached, keyed by their string form.
+	 * @return The documents that match. The bitmap may be shared, so it must
+	 *         not be modified.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	public DocIdBitmap getMatchBitmap(IndexContext context, RetrievalModel r, FilterCache filters)
+			throws IOException {
+		String key = this.toString();
+		DocIdBitmap matches = filters.get(context, key);
+
+		if (matches == null) {
+			matches = this.evaluateMatchBitmap(context, r, filters);
+			filters.put(context, key, matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * Evaluate the query operator as a bitmap, for getMatchBitmap. Operators
+	 * that override hasMatchBitmap must override this method.
+	 * 
+	 * @param context The index to search
+	 * @param r       The retrieval model that determines what is a match
+	 * @param filters Bitmaps of repeated subtrees, for the arguments.
+	 * @return The documents that match.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	protected DocIdBitmap evaluateMatchBitmap(IndexContext context, RetrievalModel r, FilterCache filters)
+			throws IOException {
+		throw new UnsupportedOperationException(this.getDisplayName() + " can't be evaluated as a bitmap.");
+	}
+
+	/**
+	 * Prepare MaxScore pruning for an operator whose score is the sum of the
+	 * scores of the arguments that match a document.
+	 * 
+	 * @param r              The retrieval model that determines how scores are
+	 *                       calculated.
+	 * @param useBlockBounds If true, also check candidates against the block
+	 *                       upper bounds of the arguments.
+	 */
+	protected void initializeSumPruning(RetrievalModel r, boolean useBlockBounds) {
+		int n = this.args.size();
+		double[] gains = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			gains[i] = ((QrySop) this.args.get(i)).getMaxScore(r);
+		}
+
+		this.logExponents = null;
+		this.useBlockBounds = useBlockBounds;
+		this.initializePruning(0.0, gains);
+	}
+
+	/**
+	 * Prepare MaxScore pruning for an operator whose score is the product of
+	 * the argument scores raised to the specified exponents; arguments that
+	 * don't match a document contribute their default scores. Pruning is done
+	 * in log space, where the score is a weighted sum: the base bound is the
+	 * weighted sum of the logs of the default score bounds, and the gain of an
+	 * argument that matches is the amount by which its score improves on its
+	 * default score bound.
+	 * 
+	 * @param r         The retrieval model that determines how scores are
+	 *                  calculated.
+	 * @param exponents The exponent of each argument.
+	 */
+	protected void initializeProductPruning(RetrievalModel r, double[] exponents) {
+		int n = this.args.size();
+		double base = 0.0;
+		double[] gains = new double[n];
+
+		this.defaultBounds = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			double maxDefault = q_i.getMaxDefaultScore(r);
+			double max = Math.max(q_i.getMaxScore(r), maxDefault);
+
+			this.defaultBounds[i] = maxDefault;
+			base += exponents[i] * Math.log(maxDefault);
+			gains[i] = exponents[i] * (Math.log(max) - Math.log(maxDefault));
+		}
+
+		this.logExponents = exponents;
+		this.useBlockBounds = false;
+		this.initializePruning(base, gains);
+	}
+
+	/**
+	 * Sort the arguments by their gain bounds. If a bound is not a finite,
+	 * non-negative number, the operator doesn't prune.
+	 * 
+	 * @param base  The score bound of a document that matches no argument.
+	 * @param gains The gain bound of each argument.
+	 */
+	private void initializePruning(double base, final double[] gains) {
+		int n = this.args.size();
+		Integer[] order = new Integer[n];
+
+		this.boundOrder = null;
+
+		if (Double.isInfinite(base) || Double.isNaN(base)) {
+			return;
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (Double.isInfinite(gains[i]) || Double.isNaN(gains[i]) || (gains[i] < 0.0)) {
+				return;
+			}
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return Double.compare(gains[i], gains[j]);
+			}
+		});
+
+		this.boundOrder = new int[n];
+		this.gainBounds = new double[n];
+		this.boundSums = new double[n + 1];
+		this.boundSums[0] = base;
+
+		for (int i = 0; i < n; i++) {
+			this.boundOrder[i] = order[i];
+			this.gainBounds[i] = gains[order[i]];
+			this.boundSums[i + 1] = this.boundSums[i] + this.gainBounds[i];
+		}
+
+		this.firstEssential = 0;
+		this.partitionThreshold = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Get the gain of the i'th argument, which matches the candidate document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @param i The index of the argument.
+	 * @return The gain.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	private double getGain(RetrievalModel r, int i) throws IOException {
+		double score = ((QrySop) this.args.get(i)).getScore(r);
+
+		if (this.logExponents == null) {
+			return score;
+		}
+
+		return this.logExponents[i] * (Math.log(score) - Math.log(this.defaultBounds[i]));
+	}
+
+	/**
+	 * An instantiation of docIteratorHasMatch that uses MaxScore pruning if a
+	 * score threshold is set and the operator was prepared for pruning; it is
+	 * true if there is a document whose score may reach the threshold.
+	 * Otherwise it is docIteratorHasMatchMin.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return True if the query matches, otherwise false.
+	 */
+	protected boolean docIteratorHasMatchPruned(RetrievalModel r) {
+
+		double threshold = this.scoreThreshold;
+
+		if ((this.logExponents != null) && (threshold != Double.NEGATIVE_INFINITY)) {
+			threshold = (threshold > 0.0) ? Math.log(threshold) : Double.NEGATIVE_INFINITY;
+		}
+
+		if ((this.boundOrder == null) || (threshold == Double.NEGATIVE_INFINITY)) {
+			return this.docIteratorHasMatchMin(r);
+		}
+
+		if (this.docIteratorHasMatchCache()) {
+			return true;
+		}
+
+		try {
+			return this.docIteratorHasMatchMaxScore(r, threshold);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Find the next document whose score bound reaches the threshold.
+	 * 
+	 * @param r         The retrieval model that determines what is a match
+	 * @param threshold The score threshold, in the space of the bounds.
+	 * @return True if the query matches, otherwise false.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	private boolean docIteratorHasMatchMaxScore(RetrievalModel r, double threshold) throws IOException {
+
+		int n = this.boundOrder.length;
+		double minScore = threshold - BOUND_SLACK * Math.abs(threshold);
+
+		// The threshold only increases, so arguments only become
+		// non-essential.
+
+		if (threshold != this.partitionThreshold) {
+			while ((this.firstEssential < n) && (this.boundSums[this.firstEssential + 1] < minScore)) {
+				this.firstEssential++;
+			}
+			this.partitionThreshold = threshold;
+		}
+
+		while (true) {
+
+			// If every argument is non-essential, no document can reach the
+			// threshold.
+
+			if (this.firstEssential == n) {
+				return false;
+			}
+
+			// The candidate is the smallest docid of an essential argument.
+
+			int docid = Qry.INVALID_DOCID;
+
+			for (int i = this.firstEssential; i < n; i++) {
+				Qry q_i = this.args.get(this.boundOrder[i]);
+
+				if (q_i.docIteratorHasMatch(r)) {
+					int q_iDocid = q_i.docIteratorGetMatch();
+
+					if ((docid == Qry.INVALID_DOCID) || (q_iDocid < docid)) {
+						docid = q_iDocid;
+					}
+				}
+			}
+
+			if (docid == Qry.INVALID_DOCID) {
+				return false;
+			}
+
+			// Skip the rest of the blocks that contain the candidate if no
+			// document in them can reach the threshold.
+
+			if (this.useBlockBounds) {
+				double blockBound = this.boundSums[0];
+				int blockEnd = Integer.MAX_VALUE;
+
+				for (int i = 0; i < n; i++) {
+					QrySop q_i = (QrySop) this.args.get(i);
+					blockBound += q_i.getMaxScore(r, docid);
+					blockEnd = Math.min(blockEnd, q_i.getBlockEnd(docid));
+				}
+
+				if (blockBound < minScore) {
+					if (blockEnd == Integer.MAX_VALUE) {
+						return false;
+					}
+
+					for (int i = this.firstEssential; i < n; i++) {
+						this.args.get(this.boundOrder[i]).docIteratorAdvanceTo(blockEnd + 1);
+					}
+					continue;
+				}
+			}
+
+			// Add the gains of the essential arguments that match, and
+			// assume the best for the non-essential arguments.
+
+			double bound = this.boundSums[this.firstEssential];
+
+			for (int i = this.firstEssential; i < n; i++) {
+				Qry q_i = this.args.get(this.boundOrder[i]);
+
+				if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == docid)) {
+					bound += this.getGain(r, this.boundOrder[i]);
+				}
+			}
+
+			// Replace the bounds of non-essential arguments by their gains,
+			// best bound first, while the candidate can reach the threshold.
+
+			for (int i = this.firstEssential - 1; (i >= 0) && (bound >= minScore); i--) {
+				Qry q_i = this.args.get(this.boundOrder[i]);
+
+				bound -= this.gainBounds[i];
+				q_i.docIteratorAdvanceTo(docid);
+
+				if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == docid)) {
+					bound += this.getGain(r, this.boundOrder[i]);
+				}
+			}
+
+			if (bound >= minScore) {
+
+				// Every argument must be positioned at or after the match
+				// so that getScore sees the same arguments as it would
+				// without pruning.
+
+				for (int i = 0; i < this.firstEssential; i++) {
+					this.args.get(this.boundOrder[i]).docIteratorAdvanceTo(docid);
+				}
+
+				this.docIteratorSetMatchCache(docid);
+				return true;
+			}
+
+			for (int i = this.firstEssential; i < n; i++) {
+				this.args.get(this.boundOrder[i]).docIteratorAdvancePast(docid);
+			}
+		}
+	}
+
 	/**
 	 * Initialize the query operator (and its arguments), including any internal
 	 * iterators. If the query operator is of type QryIop, it is fully evaluated,
 	 * and the results are stored in an internal inverted list that may be accessed
 	 * via the internal iterator.
 	 * 
-	 * @param r A retrieval model that guides initialization
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	public void initialize(RetrievalModel r) throws IOException {
+	public void initialize(IndexContext context, RetrievalModel r) throws IOException {
 		for (Qry q_i : this.args) {
-			q_i.initialize(r);
+			q_i.initialize(context, r);
 		}
+		this.docIteratorResetUnion();
 	}
 }
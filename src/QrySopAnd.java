@@ -1,10 +1,14 @@
 
 import java.io.*;
+import java.util.*;
 
 import retrieval_model.RetrievalModel;
 import retrieval_model.RetrievalModelIndri;
 import retrieval_model.RetrievalModelRankedBoolean;
 import retrieval_model.RetrievalModelUnrankedBoolean;
+import support.DocIdBitmap;
+import support.FilterCache;
+import support.IndexContext;
 
 /**
  * The AND operator for all retrieval models.
@@ -19,8 +23,9 @@ public class QrySopAnd extends QrySop {
 	 */
 	public boolean docIteratorHasMatch(RetrievalModel r) {
 		if (r instanceof RetrievalModelIndri) {
-			// the indri model uses docIteratorHasMatchMin and others use all
-            return this.docIteratorHasMatchMin(r);
+			// the indri model uses docIteratorHasMatchMin (with pruning) and
+			// others use all
+            return this.docIteratorHasMatchPruned(r);
         }
         return this.docIteratorHasMatchAll(r);
 	}
@@ -44,6 +49,52 @@ public class QrySopAnd extends QrySop {
 		}
 	}
 
+	/**
+	 * In the unranked Boolean model every match scores 1.0, so the operator
+	 * can be evaluated as a bitmap if its arguments can.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return True if getMatchBitmap may be called.
+	 */
+	public boolean hasMatchBitmap(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelUnrankedBoolean) || (this.args.size() == 0)) {
+			return false;
+		}
+
+		for (Qry q_i : this.args) {
+			if (!(q_i instanceof QrySop) || !((QrySop) q_i).hasMatchBitmap(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The documents that match are the documents that match all of the arguments.
+	 * 
+	 * @param context The index to search
+	 * @param r       The retrieval model that determines what is a match
+	 * @param filters Bitmaps of repeated subtrees.
+	 * @return The documents that match.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	protected DocIdBitmap evaluateMatchBitmap(IndexContext context, RetrievalModel r, FilterCache filters)
+			throws IOException {
+		DocIdBitmap result = null;
+
+		for (Qry q_i : this.args) {
+			DocIdBitmap b = ((QrySop) q_i).getMatchBitmap(context, r, filters);
+			result = (result == null) ? b : DocIdBitmap.and(result, b);
+
+			// Nothing can match, so don't evaluate the other arguments.
+
+			if (result.cardinality() == 0) {
+				break;
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * getScore for the UnrankedBoolean retrieval model.
 	 * 
@@ -95,6 +146,87 @@ public class QrySopAnd extends QrySop {
         return Math.pow(score, 1.0 / this.args.size());
     }
 
+	/**
+	 * Get an upper bound on the Indri score of any document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getMaxScore(r);
+		}
+
+		double logScore = 0.0;
+		for (int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			logScore += Math.log(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)));
+		}
+		return Math.exp(logScore / this.args.size());
+	}
+
+	/**
+	 * Get an upper bound on the Indri default score of any document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxDefaultScore(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getMaxDefaultScore(r);
+		}
+
+		double logScore = 0.0;
+		for (int i = 0; i < this.args.size(); i++) {
+			logScore += Math.log(((QrySop) this.args.get(i)).getMaxDefaultScore(r));
+		}
+		return Math.exp(logScore / this.args.size());
+	}
+
+	/**
+	 * Initialize the query operator (and its arguments). For the Indri
+	 * retrieval model, the score is the geometric mean of the argument
+	 * scores, so prepare MaxScore pruning with equal exponents.
+	 * 
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public void initialize(IndexContext context, RetrievalModel r) throws IOException {
+		super.initialize(context, r);
+
+		if (r instanceof RetrievalModelIndri) {
+			double[] exponents = new double[this.args.size()];
+			Arrays.fill(exponents, 1.0 / this.args.size());
+			this.initializeProductPruning(r, exponents);
+		} else {
+			// Boolean AND visits its rarest argument first.
+			this.optimizeMatchAllOrder(r);
+		}
+	}
+
+	/**
+	 * Estimate the number of documents that match the query operator. A
+	 * Boolean AND matches no more documents than its rarest argument; the
+	 * Indri AND matches the union of its arguments.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return The estimated number of matching documents.
+	 */
+	@Override
+	public long getEstimatedDf(RetrievalModel r) {
+		if ((r instanceof RetrievalModelIndri) || (this.args.size() == 0)) {
+			return super.getEstimatedDf(r);
+		}
+
+		long df = Long.MAX_VALUE;
+
+		for (Qry q_i : this.args) {
+			df = Math.min(df, q_i.getEstimatedDf(r));
+		}
+		return df;
+	}
+
 	/**
 	 * get the score for the Indri retrieval model.
 	 * 
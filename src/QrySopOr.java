@@ -8,6 +8,9 @@ import java.io.*;
 import retrieval_model.RetrievalModel;
 import retrieval_model.RetrievalModelRankedBoolean;
 import retrieval_model.RetrievalModelUnrankedBoolean;
+import support.DocIdBitmap;
+import support.FilterCache;
+import support.IndexContext;
 
 /**
  * The OR operator for all retrieval models.
@@ -50,6 +53,46 @@ public class QrySopOr extends QrySop {
 		return 0.0;
 	}
 
+	/**
+	 * In the unranked Boolean model every match scores 1.0, so the operator
+	 * can be evaluated as a bitmap if its arguments can.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return True if getMatchBitmap may be called.
+	 */
+	public boolean hasMatchBitmap(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelUnrankedBoolean) || (this.args.size() == 0)) {
+			return false;
+		}
+
+		for (Qry q_i : this.args) {
+			if (!(q_i instanceof QrySop) || !((QrySop) q_i).hasMatchBitmap(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The documents that match are the documents that match any of the arguments.
+	 * 
+	 * @param context The index to search
+	 * @param r       The retrieval model that determines what is a match
+	 * @param filters Bitmaps of repeated subtrees.
+	 * @return The documents that match.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	protected DocIdBitmap evaluateMatchBitmap(IndexContext context, RetrievalModel r, FilterCache filters)
+			throws IOException {
+		DocIdBitmap result = null;
+
+		for (Qry q_i : this.args) {
+			DocIdBitmap b = ((QrySop) q_i).getMatchBitmap(context, r, filters);
+			result = (result == null) ? b : DocIdBitmap.or(result, b);
+		}
+		return result;
+	}
+
 	/**
 	 * getScore for the UnrankedBoolean retrieval model.
 	 * 
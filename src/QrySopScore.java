@@ -1,13 +1,17 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.Arrays;
 
 import retrieval_model.RetrievalModel;
 import retrieval_model.RetrievalModelBM25;
 import retrieval_model.RetrievalModelIndri;
 import retrieval_model.RetrievalModelRankedBoolean;
 import retrieval_model.RetrievalModelUnrankedBoolean;
-import support.Idx;
+import support.DocIdBitmap;
+import support.FilterCache;
+import support.IndexContext;
+import support.InvList;
 
 /**
  * The SCORE operator for all retrieval models.
@@ -19,6 +23,32 @@ public class QrySopScore extends QrySop {
 	 * retrieval models have these, some don't.
 	 */
 
+	/**
+	 * BM25 length normalizations are tabulated for documents shorter than
+	 * this.
+	 */
+	private static final int MAX_TABULATED_DOCLEN = 1 << 16;
+
+	/**
+	 * The index that the query operator searches.
+	 */
+	private IndexContext context = null;
+
+	/**
+	 * The document length store's id for the field of the argument.
+	 */
+	private int fieldId = -1;
+
+	// BM25: idf, user weight, parameters, average field length, and the
+	// tabulated length normalizations.
+
+	private double idf, userWeight, k_1, b, avgDocLen;
+	private double[] bm25LengthNorms;
+
+	// Indri: mu, mu * p_mle, 1 - lambda, and lambda * p_mle.
+
+	private double mu, muPmle, oneMinusLambda, lambdaPmle;
+
 	/**
 	 * Indicates whether the query has a match.
 	 * 
@@ -65,6 +95,31 @@ public class QrySopScore extends QrySop {
 		}
 	}
 
+	/**
+	 * Every match scores 1.0 in the unranked Boolean model.
+	 * 
+	 * @param r The retrieval model that determines what is a match
+	 * @return True if getMatchBitmap may be called.
+	 */
+	public boolean hasMatchBitmap(RetrievalModel r) {
+		return (r instanceof RetrievalModelUnrankedBoolean);
+	}
+
+	/**
+	 * The documents that match are the documents that the argument matches.
+	 * 
+	 * @param context The index to search
+	 * @param r       The retrieval model that determines what is a match
+	 * @param filters Bitmaps of repeated subtrees.
+	 * @return The documents that match.
+	 * @throws IOException Error accessing the Lucene index
+	 */
+	protected DocIdBitmap evaluateMatchBitmap(IndexContext context, RetrievalModel r, FilterCache filters)
+			throws IOException {
+		this.initialize(context, r);
+		return this.getArg(0).getDocIdBitmap();
+	}
+
 	/**
 	 * getScore for the Ranked retrieval model.
 	 * 
@@ -74,7 +129,7 @@ public class QrySopScore extends QrySop {
 	 */
 	public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
 		QryIop qry = this.getArg(0);
-		return qry.docIteratorGetMatchPosting().tf;
+		return qry.docIteratorGetMatchTf();
 	}
 
 	/**
@@ -86,29 +141,180 @@ public class QrySopScore extends QrySop {
 	 */
 	public double getScoreBM25(RetrievalModel r) throws IOException {
 		QryIop qry = this.getArg(0);
-		double k_1 = ((RetrievalModelBM25) r).getK1();
-        double k_3 = ((RetrievalModelBM25) r).getK3();
-        double b = ((RetrievalModelBM25) r).getB();
         
 		if (!qry.docIteratorHasMatch(r)) {
 			return 0.0;
 		} else {
-			// calculate idf
-            double df = qry.getDf();
-            double idf = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
-            if(idf < 0.0) idf = 0.0;
-            
             // calculate tf weight
-            double tf = qry.docIteratorGetMatchPosting().tf;
-            double doclen = Idx.getFieldLength(qry.getField(), qry.docIteratorGetMatch());
-            double avg_doclen = Idx.getSumOfFieldLengths(qry.getField()) / (double) Idx.getDocCount(qry.getField());
-            double tf_weight = tf / (tf + k_1 * ((1 - b) + b * doclen / avg_doclen));
+            double tf = qry.docIteratorGetMatchTf();
+            int doclen = this.context.getFieldLength(this.fieldId, qry.docIteratorGetMatch());
+            double tf_weight = tf / (tf + this.getBM25LengthNorm(doclen));
             
-            // calculate user weight
-            double user_weight = (k_3 + 1.0) * 1 / (k_3 + 1);
-            
-            return idf * tf_weight * user_weight;
+            return this.idf * tf_weight * this.userWeight;
+		}
+	}
+
+	/**
+	 * Get an upper bound on the score of any document. In BM25 and Indri, the
+	 * score increases with tf and decreases with the document length, and a
+	 * document is at least as long as the term frequency of a term in it, so
+	 * the bound is the score of the largest tf in a document of that length.
+	 * #SYN can count a location more than once, so its bound assumes an empty
+	 * document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r) {
+		QryIop qry = this.getArg(0);
+
+		if (r instanceof RetrievalModelBM25) {
+			return (qry.getDf() == 0) ? 0.0 : this.getBM25Bound(qry.getMaxTf(), 0);
+		} else if (r instanceof RetrievalModelIndri) {
+			return (qry.getDf() == 0) ? this.getMaxDefaultScore(r) : this.getIndriBound(qry.getMaxTf(), 0);
+		} else {
+			return super.getMaxScore(r);
+		}
+	}
+
+	/**
+	 * Get an upper bound on the default score of any document, which is the
+	 * default score of an empty document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxDefaultScore(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getMaxDefaultScore(r);
+		}
+
+		return this.oneMinusLambda * (this.muPmle / this.mu) + this.lambdaPmle;
+	}
+
+	/**
+	 * Get the shortest possible length of a document that has the largest tf,
+	 * given the shortest document length.
+	 * 
+	 * @param maxTf     The largest tf.
+	 * @param minDocLen The shortest document length.
+	 * @return The shortest possible length.
+	 */
+	private double getMinDocLen(double maxTf, double minDocLen) {
+		return (this.getArg(0) instanceof QryIopSyn) ? minDocLen : Math.max(minDocLen, maxTf);
+	}
+
+	/**
+	 * Get an upper bound on the BM25 score of documents, from their largest tf
+	 * and shortest document.
+	 * 
+	 * @param maxTf     The largest tf.
+	 * @param minDocLen The shortest document length.
+	 * @return The upper bound.
+	 */
+	private double getBM25Bound(double maxTf, double minDocLen) {
+		double doclen = this.getMinDocLen(maxTf, minDocLen);
+		double norm = this.k_1 * ((1 - this.b) + this.b * doclen / this.avgDocLen);
+
+		return this.idf * (maxTf / (maxTf + norm)) * this.userWeight;
+	}
+
+	/**
+	 * Get an upper bound on the Indri score of documents, from their largest
+	 * tf and shortest document.
+	 * 
+	 * @param maxTf     The largest tf.
+	 * @param minDocLen The shortest document length.
+	 * @return The upper bound.
+	 */
+	private double getIndriBound(double maxTf, double minDocLen) {
+		double doclen = this.getMinDocLen(maxTf, minDocLen);
+
+		return (this.oneMinusLambda * ((maxTf + this.muPmle) / (doclen + this.mu)) + this.lambdaPmle);
+	}
+
+	/**
+	 * Indicates whether the inverted list of the argument has block metadata.
+	 * 
+	 * @return True if block upper bounds are available.
+	 */
+	public boolean hasBlockMaxScores() {
+		InvList list = this.getArg(0).invertedList;
+		return (list != null) && list.hasBlockMetadata();
+	}
+
+	/**
+	 * Get the last docid of the inverted list block that contains the first
+	 * posting at or after docid.
+	 * 
+	 * @param docid An internal document id.
+	 * @return The last docid of the block.
+	 */
+	public int getBlockEnd(int docid) {
+		InvList list = this.getArg(0).invertedList;
+
+		if ((list == null) || !list.hasBlockMetadata()) {
+			return super.getBlockEnd(docid);
 		}
+
+		int block = list.findBlock(docid);
+		return (block < list.getBlockCount()) ? list.getBlockLastDocid(block) : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Get an upper bound on the score of any document from docid to
+	 * getBlockEnd(docid), using the block metadata of the inverted list.
+	 * 
+	 * @param r     The retrieval model that determines how scores are
+	 *              calculated.
+	 * @param docid An internal document id.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r, int docid) {
+		InvList list = this.getArg(0).invertedList;
+
+		if (!(r instanceof RetrievalModelBM25) || (list == null) || !list.hasBlockMetadata()) {
+			return super.getMaxScore(r, docid);
+		}
+
+		int block = list.findBlock(docid);
+
+		if (block == list.getBlockCount()) {
+			return 0.0;
+		}
+
+		return this.getBM25Bound(list.getBlockMaxTf(block), list.getBlockMinLength(block));
+	}
+
+	/**
+	 * Get the BM25 length normalization k_1 * ((1 - b) + b * doclen /
+	 * avg_doclen) of a document length. Values for short documents are
+	 * tabulated the first time that they are needed.
+	 * 
+	 * @param doclen The length of the field in a document.
+	 * @return The length normalization.
+	 */
+	private double getBM25LengthNorm(int doclen) {
+
+		if (doclen >= MAX_TABULATED_DOCLEN) {
+			return this.k_1 * ((1 - this.b) + this.b * (double) doclen / this.avgDocLen);
+		}
+
+		if (doclen >= this.bm25LengthNorms.length) {
+			int oldLength = this.bm25LengthNorms.length;
+			int newLength = Math.min(MAX_TABULATED_DOCLEN, Math.max(doclen + 1, oldLength * 2));
+			this.bm25LengthNorms = Arrays.copyOf(this.bm25LengthNorms, newLength);
+			Arrays.fill(this.bm25LengthNorms, oldLength, newLength, Double.NaN);
+		}
+
+		double norm = this.bm25LengthNorms[doclen];
+
+		if (Double.isNaN(norm)) {
+			norm = this.k_1 * ((1 - this.b) + this.b * (double) doclen / this.avgDocLen);
+			this.bm25LengthNorms[doclen] = norm;
+		}
+
+		return norm;
 	}
 	
 	/**
@@ -120,14 +326,9 @@ public class QrySopScore extends QrySop {
 	 * @throws IOException Error accessing the Lucene index
 	 */
 	public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        QryIop qry = this.getArg(0);
-        double mu = ((RetrievalModelIndri) r).getMu();
-        double lambda = ((RetrievalModelIndri) r).getLambda();
-        
-        double doclen = Idx.getFieldLength(qry.getField(), docid);
-        double pmle = qry.getCtf() / (double) Idx.getSumOfFieldLengths(qry.getField());
+        double doclen = this.context.getFieldLength(this.fieldId, docid);
 
-        return (1.0 - lambda) * ((0 + mu * pmle) / (doclen + mu)) + lambda * pmle;
+        return this.oneMinusLambda * (this.muPmle / (doclen + this.mu)) + this.lambdaPmle;
     }
 	
 	/**
@@ -140,18 +341,14 @@ public class QrySopScore extends QrySop {
 	 */
 	public double getScoreIndri(RetrievalModel r) throws IOException {
 		QryIop qry = this.getArg(0);
-        double mu = ((RetrievalModelIndri) r).getMu();
-        double lambda = ((RetrievalModelIndri) r).getLambda();
         
         if (!qry.docIteratorHasMatch(r)) {
         	return 0.0;
         } else {
-        	double tf = qry.docIteratorGetMatchPosting().tf;
-            
-            double doclen = Idx.getFieldLength(qry.getField(), qry.docIteratorGetMatch());
-            double pmle = qry.getCtf() / (double) Idx.getSumOfFieldLengths(qry.getField());
+        	double tf = qry.docIteratorGetMatchTf();
+            double doclen = this.context.getFieldLength(this.fieldId, qry.docIteratorGetMatch());
 
-            return ((1.0 - lambda) * ((tf + mu * pmle) / (doclen + mu)) + lambda * pmle);
+            return (this.oneMinusLambda * ((tf + this.muPmle) / (doclen + this.mu)) + this.lambdaPmle);
         }
     }
 	
@@ -161,13 +358,49 @@ public class QrySopScore extends QrySop {
 	 * and the results are stored in an internal inverted list that may be accessed
 	 * via the internal iterator.
 	 * 
-	 * @param r A retrieval model that guides initialization
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	public void initialize(RetrievalModel r) throws IOException {
+	public void initialize(IndexContext context, RetrievalModel r) throws IOException {
+
+		this.context = context;
 
 		Qry q = this.args.get(0);
-		q.initialize(r);
+		q.initialize(context, r);
+
+		QryIop qry = (QryIop) q;
+		String field = qry.getField();
+
+		this.fieldId = context.getFieldId(field);
+
+		// The term statistics are known now, so compute the parts of the
+		// score that don't depend on the document.
+
+		if (r instanceof RetrievalModelBM25) {
+			RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+			double k_3 = bm25.getK3();
+			double df = qry.getDf();
+
+			this.k_1 = bm25.getK1();
+			this.b = bm25.getB();
+
+			this.idf = Math.log((context.getNumDocs() - df + 0.5) / (df + 0.5));
+			if (this.idf < 0.0)
+				this.idf = 0.0;
+
+			this.avgDocLen = context.getSumOfFieldLengths(field) / (double) context.getDocCount(field);
+			this.userWeight = (k_3 + 1.0) * 1 / (k_3 + 1);
+			this.bm25LengthNorms = new double[0];
+		} else if (r instanceof RetrievalModelIndri) {
+			RetrievalModelIndri indri = (RetrievalModelIndri) r;
+			double pmle = qry.getCtf() / (double) context.getSumOfFieldLengths(field);
+
+			this.mu = indri.getMu();
+			this.muPmle = this.mu * pmle;
+			this.oneMinusLambda = 1.0 - indri.getLambda();
+			this.lambdaPmle = indri.getLambda() * pmle;
+		}
 	}
 
 }
@@ -3,9 +3,18 @@ import java.io.*;
 
 import retrieval_model.RetrievalModel;
 import retrieval_model.RetrievalModelBM25;
+import support.IndexContext;
 
 /**
  * The SUM operator for BM25 retrieval models.
+ * <p>
+ * When a score threshold is set, the SUM operator uses MaxScore pruning (see
+ * QrySop). If some arguments have block upper bounds (see InvList's block
+ * metadata), each candidate is first checked against the sum of the bounds
+ * of the blocks that contain it. If that can't reach the threshold, no
+ * document up to the end of the shortest of those blocks can, so the
+ * essential arguments skip the rest of the block.
+ * </p>
  */
 public class QrySopSum extends QrySop {
 
@@ -16,7 +25,7 @@ public class QrySopSum extends QrySop {
 	 * @return True if the query matches, otherwise false.
 	 */
 	public boolean docIteratorHasMatch(RetrievalModel r) {
-		return this.docIteratorHasMatchMin(r);
+		return this.docIteratorHasMatchPruned(r);
 	}
 
 	/**
@@ -50,6 +59,85 @@ public class QrySopSum extends QrySop {
 		}
 	}
 
+	/**
+	 * Get an upper bound on the score of any document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r) {
+		double sum = 0.0;
+
+		for (Qry q_i : this.args) {
+			sum += ((QrySop) q_i).getMaxScore(r);
+		}
+		return sum;
+	}
+
+	/**
+	 * Indicates whether some argument has block upper bounds.
+	 * 
+	 * @return True if block upper bounds are available.
+	 */
+	public boolean hasBlockMaxScores() {
+		for (Qry q_i : this.args) {
+			if (((QrySop) q_i).hasBlockMaxScores()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the last docid of the block of documents that starts at docid, which
+	 * ends where the earliest of the arguments' blocks ends.
+	 * 
+	 * @param docid An internal document id.
+	 * @return The last docid of the block.
+	 */
+	public int getBlockEnd(int docid) {
+		int blockEnd = Integer.MAX_VALUE;
+
+		for (Qry q_i : this.args) {
+			blockEnd = Math.min(blockEnd, ((QrySop) q_i).getBlockEnd(docid));
+		}
+		return blockEnd;
+	}
+
+	/**
+	 * Get an upper bound on the score of any document from docid to
+	 * getBlockEnd(docid).
+	 * 
+	 * @param r     The retrieval model that determines how scores are
+	 *              calculated.
+	 * @param docid An internal document id.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r, int docid) {
+		double sum = 0.0;
+
+		for (Qry q_i : this.args) {
+			sum += ((QrySop) q_i).getMaxScore(r, docid);
+		}
+		return sum;
+	}
+
+	/**
+	 * Initialize the query operator (and its arguments), and prepare MaxScore
+	 * pruning.
+	 * 
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public void initialize(IndexContext context, RetrievalModel r) throws IOException {
+		super.initialize(context, r);
+
+		if (r instanceof RetrievalModelBM25) {
+			this.initializeSumPruning(r, this.hasBlockMaxScores());
+		}
+	}
+
 	/**
 	 * get the score for the BM25 retrieval model.
 	 * 
@@ -3,6 +3,7 @@ import java.io.*;
 
 import retrieval_model.RetrievalModel;
 import retrieval_model.RetrievalModelIndri;
+import support.IndexContext;
 
 /**
  * The WAND operator for all retrieval models.
@@ -16,7 +17,7 @@ public class QrySopWAnd extends QrySop {
 	 * @return True if the query matches, otherwise false.
 	 */
 	public boolean docIteratorHasMatch(RetrievalModel r) {
-		return this.docIteratorHasMatchMin(r);
+		return this.docIteratorHasMatchPruned(r);
 	}
 
 	/**
@@ -56,6 +57,82 @@ public class QrySopWAnd extends QrySop {
         return score;
     }
 
+	/**
+	 * Get the exponent of each argument, which is its share of the total
+	 * weight.
+	 * 
+	 * @return The exponents.
+	 */
+	private double[] getExponents() {
+		double weight = 0.0;
+		for (int i = 0; i < this.args.size(); i++) {
+			weight += this.args.get(i).weight;
+		}
+
+		double[] exponents = new double[this.args.size()];
+		for (int i = 0; i < this.args.size(); i++) {
+			exponents[i] = this.args.get(i).weight / weight;
+		}
+		return exponents;
+	}
+
+	/**
+	 * Get an upper bound on the Indri score of any document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxScore(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getMaxScore(r);
+		}
+
+		double[] exponents = this.getExponents();
+		double logScore = 0.0;
+		for (int i = 0; i < this.args.size(); i++) {
+			QrySop q_i = (QrySop) this.args.get(i);
+			logScore += exponents[i] * Math.log(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)));
+		}
+		return Math.exp(logScore);
+	}
+
+	/**
+	 * Get an upper bound on the Indri default score of any document.
+	 * 
+	 * @param r The retrieval model that determines how scores are calculated.
+	 * @return The upper bound.
+	 */
+	public double getMaxDefaultScore(RetrievalModel r) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getMaxDefaultScore(r);
+		}
+
+		double[] exponents = this.getExponents();
+		double logScore = 0.0;
+		for (int i = 0; i < this.args.size(); i++) {
+			logScore += exponents[i] * Math.log(((QrySop) this.args.get(i)).getMaxDefaultScore(r));
+		}
+		return Math.exp(logScore);
+	}
+
+	/**
+	 * Initialize the query operator (and its arguments). For the Indri
+	 * retrieval model, the score is a weighted geometric mean of the argument
+	 * scores, so prepare MaxScore pruning with the argument weights as
+	 * exponents.
+	 * 
+	 * @param context The index to search
+	 * @param r       A retrieval model that guides initialization
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public void initialize(IndexContext context, RetrievalModel r) throws IOException {
+		super.initialize(context, r);
+
+		if (r instanceof RetrievalModelIndri) {
+			this.initializeProductPruning(r, this.getExponents());
+		}
+	}
+
 	/**
 	 * get the score for the indri retrieval model.
 	 * 
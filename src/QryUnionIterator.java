@@ -0,0 +1,258 @@
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+import retrieval_model.RetrievalModel;
+
+/**
+ * A document-at-a-time iterator over the union of the documents that match a
+ * list of query arguments. The arguments are kept in a min-heap keyed by the
+ * docid that each argument matched when it was last examined, so finding the
+ * smallest docid, or the arguments that match it, doesn't require examining
+ * every argument.
+ * <p>
+ * Arguments only move forward, so a key is never greater than the docid that
+ * its argument matches now. Keys are therefore allowed to be out of date:
+ * when the argument at the top of the heap is examined, its key is refreshed
+ * and it is moved down if it has advanced. This lets callers (e.g., MaxScore
+ * pruning) advance arguments directly without telling the iterator.
+ * </p>
+ */
+public class QryUnionIterator {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The key of an argument that has no more matches.
+	 */
+	private static final int EXHAUSTED = Integer.MAX_VALUE;
+
+	/**
+	 * The query arguments.
+	 */
+	private final List<Qry> args;
+
+	/**
+	 * The heap of argument indexes, and the key of each argument (indexed by
+	 * argument, not by heap position). The heap is built the first time that
+	 * it is used.
+	 */
+	private int[] heap = null;
+	private int[] keys;
+
+	/**
+	 * A scratch stack for visiting the top of the heap.
+	 */
+	private int[] stack;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param args The query arguments. The list must not change while the
+	 *             iterator is in use.
+	 */
+	public QryUnionIterator(List<Qry> args) {
+		this.args = args;
+	}
+
+	/**
+	 * Get the docid that an argument matches now.
+	 *
+	 * @param r The retrieval model that determines what is a match
+	 * @param i The index of the argument.
+	 * @return The docid, or EXHAUSTED.
+	 */
+	private int getArgDocid(RetrievalModel r, int i) {
+		Qry q_i = this.args.get(i);
+		return q_i.docIteratorHasMatch(r) ? q_i.docIteratorGetMatch() : EXHAUSTED;
+	}
+
+	/**
+	 * Get the smallest docid that any argument matches.
+	 *
+	 * @param r The retrieval model that determines what is a match
+	 * @return The docid, or Qry.INVALID_DOCID if no argument has a match.
+	 */
+	public int getMatch(RetrievalModel r) {
+
+		if (this.heap == null) {
+			this.build(r);
+		}
+
+		if (this.heap.length == 0) {
+			return Qry.INVALID_DOCID;
+		}
+
+		// Refresh the top of the heap until its key is current. Then it is
+		// the smallest docid, because other keys are lower bounds.
+
+		while (true) {
+			int top = this.heap[0];
+			int docid = (this.keys[top] == EXHAUSTED) ? EXHAUSTED : this.getArgDocid(r, top);
+
+			if (docid == this.keys[top]) {
+				return (docid == EXHAUSTED) ? Qry.INVALID_DOCID : docid;
+			}
+
+			this.keys[top] = docid;
+			this.siftDown(0);
+		}
+	}
+
+	/**
+	 * Find the arguments that match a docid. The docid must be the value most
+	 * recently returned by getMatch.
+	 *
+	 * @param r       The retrieval model that determines what is a match
+	 * @param docid   An internal document id.
+	 * @param matches An array that is filled with the indexes of the matching
+	 *                arguments, in no particular order. It must be as large as
+	 *                the number of arguments.
+	 * @return The number of matching arguments.
+	 */
+	public int getMatchingArgs(RetrievalModel r, int docid, int[] matches) {
+		int count = 0;
+		int sp = this.pushTop(docid, true);
+
+		while (sp > 0) {
+			int i = this.heap[this.stack[--sp]];
+
+			if (this.getArgDocid(r, i) == docid) {
+				matches[count++] = i;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Advance the arguments beyond the specified document. Only arguments whose
+	 * keys are at most docid can match it, so others are not touched.
+	 *
+	 * @param docid An internal document id.
+	 */
+	public void advancePast(int docid) {
+		if (this.heap == null) {
+			for (Qry q_i : this.args) {
+				q_i.docIteratorAdvancePast(docid);
+			}
+			return;
+		}
+
+		int sp = this.pushTop(docid, true);
+
+		while (sp > 0) {
+			this.args.get(this.heap[this.stack[--sp]]).docIteratorAdvancePast(docid);
+		}
+	}
+
+	/**
+	 * Advance the arguments to the specified document, or beyond. Only
+	 * arguments whose keys are less than docid are behind it, so others are
+	 * not touched.
+	 *
+	 * @param docid An internal document id.
+	 */
+	public void advanceTo(int docid) {
+		if (this.heap == null) {
+			for (Qry q_i : this.args) {
+				q_i.docIteratorAdvanceTo(docid);
+			}
+			return;
+		}
+
+		int sp = this.pushTop(docid, false);
+
+		while (sp > 0) {
+			this.args.get(this.heap[this.stack[--sp]]).docIteratorAdvanceTo(docid);
+		}
+	}
+
+	/**
+	 * Fill the scratch stack with the heap positions whose keys are at most
+	 * (or less than) docid. Because of the heap order, they are the top of
+	 * the heap.
+	 *
+	 * @param docid     An internal document id.
+	 * @param inclusive True to include keys equal to docid.
+	 * @return The number of heap positions on the stack.
+	 */
+	private int pushTop(int docid, boolean inclusive) {
+		int n = this.heap.length;
+		int sp = 0;
+		int visited = 0;
+
+		if ((n > 0) && this.isBefore(this.heap[0], docid, inclusive)) {
+			this.stack[sp++] = 0;
+		}
+
+		// The stack doubles as the output: positions before 'visited' have
+		// had their children examined.
+
+		while (visited < sp) {
+			int p = this.stack[visited++];
+
+			for (int c = 2 * p + 1; (c <= 2 * p + 2) && (c < n); c++) {
+				if (this.isBefore(this.heap[c], docid, inclusive)) {
+					this.stack[sp++] = c;
+				}
+			}
+		}
+
+		return sp;
+	}
+
+	private boolean isBefore(int i, int docid, boolean inclusive) {
+		return inclusive ? (this.keys[i] <= docid) : (this.keys[i] < docid);
+	}
+
+	/**
+	 * Build the heap from the docids that the arguments match now.
+	 *
+	 * @param r The retrieval model that determines what is a match
+	 */
+	private void build(RetrievalModel r) {
+		int n = this.args.size();
+
+		this.heap = new int[n];
+		this.keys = new int[n];
+		this.stack = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			this.heap[i] = i;
+			this.keys[i] = this.getArgDocid(r, i);
+		}
+
+		for (int p = n / 2 - 1; p >= 0; p--) {
+			this.siftDown(p);
+		}
+	}
+
+	private void siftDown(int p) {
+		int n = this.heap.length;
+		int i = this.heap[p];
+		int key = this.keys[i];
+
+		while (true) {
+			int c = 2 * p + 1;
+
+			if (c >= n) {
+				break;
+			}
+
+			if ((c + 1 < n) && (this.keys[this.heap[c + 1]] < this.keys[this.heap[c]])) {
+				c++;
+			}
+
+			if (this.keys[this.heap[c]] >= key) {
+				break;
+			}
+
+			this.heap[p] = this.heap[c];
+			p = c;
+		}
+
+		this.heap[p] = i;
+	}
+}
@@ -17,4 +17,14 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Describe the retrieval model and its parameters, e.g., for use
+   *  in cache keys.  Two models that have the same description score
+   *  every query the same way.
+   *  @return The model name and parameter values.
+   */
+  public String getParameters () {
+    return this.getClass ().getSimpleName ();
+  }
+
 }
@@ -30,4 +30,8 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public double getB() {
 		return this.b;
 	}
+
+	public String getParameters() {
+		return "BM25:k_1=" + this.k_1 + ",k_3=" + this.k_3 + ",b=" + this.b;
+	}
 }
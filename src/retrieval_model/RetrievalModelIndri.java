@@ -26,4 +26,8 @@ public class RetrievalModelIndri extends RetrievalModel {
 		return this.lambda;
 	}
 
+	public String getParameters() {
+		return "Indri:mu=" + this.mu + ",lambda=" + this.lambda;
+	}
+
 }
@@ -0,0 +1,588 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An auxiliary index of adjacent term pairs (bigrams), built from an
+ *  existing Lucene index.  The inverted list of the bigram "a b" in a
+ *  field has one location for each place where b occurs immediately
+ *  after a, which is exactly the result of #NEAR/1(a b) when a and b
+ *  are different terms.  Reading it is much cheaper than intersecting
+ *  the positional lists of two common terms (e.g., "united states").
+ *  <p>
+ *  Only frequent bigrams are stored:  a bigram must occur in at least
+ *  minDf documents.  Other pairs are cheap enough to evaluate at query
+ *  time.
+ *  </p><p>
+ *  The index is one file.  It starts with a header and a directory of
+ *  bigrams, which are read into memory when the file is opened, and
+ *  continues with the postings, which are memory-mapped and decoded
+ *  on demand.  The postings are mapped in several buffers of less
+ *  than 2 GB each, split between lists, so a single list is limited
+ *  to 2 GB.  Integers are big-endian.
+ *  </p>
+ *  <pre>
+ *    header:     MAGIC, VERSION, maxDoc, fingerprint (long), numLists
+ *    directory:  numLists entries of field (UTF), term1 (UTF),
+ *                term2 (UTF), df, ctf, offset (long, from the start
+ *                of the postings)
+ *    postings:   for each list, df entries of docid, tf, and tf
+ *                locations
+ *  </pre>
+ *  <p>
+ *  The header records the size of the Lucene index that the bigram
+ *  index was built from, so a bigram index that doesn't match the
+ *  Lucene index is rejected when it is opened.
+ *  </p><p>
+ *  Build a bigram index with
+ *  "java support.BigramIndex INDEX_PATH OUTPUT_PATH [MIN_DF [FIELD ...]]".
+ *  </p>
+ */
+public class BigramIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x42494752;
+  private static final int VERSION = 2;
+
+  /**
+   *  The fields that are indexed if none are specified.
+   */
+  private static final String[] DEFAULT_FIELDS = { "body", "title" };
+
+  /**
+   *  The minimum document frequency of indexed bigrams, if none is
+   *  specified.
+   */
+  private static final int DEFAULT_MIN_DF = 1000;
+
+  /**
+   *  The maximum number of bytes of postings that build accumulates in
+   *  memory before writing them.  A list that is larger by itself is
+   *  accumulated alone.
+   */
+  private static final long BUILD_BUFFER_SIZE = 256L * 1024 * 1024;
+
+  /**
+   *  The maximum size of a mapped buffer of postings, and thus of a
+   *  list.
+   */
+  private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+  /**
+   *  The location of each list in the postings (segment, offset in the
+   *  segment), and its df, by key.
+   */
+  private final Map<String,int[]> directory = new HashMap<String,int[]> ();
+
+  /**
+   *  The postings, in segments.  Only absolute reads are used, so the
+   *  buffers may be shared by threads.
+   */
+  private final MappedByteBuffer[] postings;
+
+  /**
+   *  A bigram that build has chosen to index, and the part of its
+   *  inverted list that is being accumulated.
+   */
+  private static class Bigram {
+    private final String term1;
+    private final String term2;
+    private final int df;
+    private final int ctf;
+
+    private int[] data = null;		// docid, tf, tf locations, ...
+    private int length = 0;
+    private int tfIndex = -1;		// the tf of the current document
+    private int lastDocid = -1;
+
+    private Bigram (String term1, String term2, int df, int ctf) {
+      this.term1 = term1;
+      this.term2 = term2;
+      this.df = df;
+      this.ctf = ctf;
+    }
+
+    /**
+     *  @return The number of bytes of postings of the list.
+     */
+    private long size () {
+      return 4L * (2L * this.df + this.ctf);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a bigram index.
+   *  @param path The bigram index file.
+   *  @param reader The Lucene index that the bigram index was built from.
+   *  @throws IOException Error reading the file.
+   *  @throws IllegalArgumentException The file isn't a bigram index
+   *          of the Lucene index.
+   */
+  public BigramIndex (String path, IndexReader reader)
+    throws IOException, IllegalArgumentException {
+
+    try (FileChannel channel = FileChannel.open (Paths.get (path))) {
+      DataInputStream in =
+        new DataInputStream (new BufferedInputStream (Channels.newInputStream (channel)));
+
+      if ((in.readInt () != MAGIC) || (in.readInt () != VERSION)) {
+        throw new IllegalArgumentException (path + " is not a bigram index.");
+      }
+
+      if ((in.readInt () != reader.maxDoc ()) ||
+          (in.readLong () != fingerprint (reader))) {
+        throw new IllegalArgumentException (
+          "The bigram index " + path + " was built from a different index.");
+      }
+
+      //  Lists are stored in directory order.  Start a new segment
+      //  whenever the next list doesn't fit in the current one.
+
+      int numLists = in.readInt ();
+      long directoryEnd = 4L * 4 + 8;
+      ArrayList<Long> segmentStarts = new ArrayList<Long> ();
+      long segmentStart = 0;
+
+      for (int i = 0; i < numLists; i++) {
+        String field = in.readUTF ();
+        String term1 = in.readUTF ();
+        String term2 = in.readUTF ();
+        int df = in.readInt ();
+        int ctf = in.readInt ();
+        long offset = in.readLong ();
+        long size = 4L * (2L * df + ctf);
+
+        if ((segmentStarts.isEmpty ()) ||
+            (offset + size - segmentStart > MAX_SEGMENT_SIZE)) {
+          segmentStart = offset;
+          segmentStarts.add (segmentStart);
+        }
+
+        this.directory.put (key (term1, term2, field),
+                            new int[] { segmentStarts.size () - 1,
+                                        (int) (offset - segmentStart), df });
+        directoryEnd += utfLength (field) + utfLength (term1) + utfLength (term2) + 4 + 4 + 8;
+      }
+
+      long postingsSize = channel.size () - directoryEnd;
+      this.postings = new MappedByteBuffer[segmentStarts.size ()];
+
+      for (int i = 0; i < this.postings.length; i++) {
+        long start = segmentStarts.get (i);
+        long end = (i + 1 < this.postings.length) ?
+          segmentStarts.get (i + 1) : postingsSize;
+
+        this.postings[i] = channel.map (FileChannel.MapMode.READ_ONLY,
+                                        directoryEnd + start, end - start);
+      }
+    }
+  }
+
+  /**
+   *  Build a bigram index from a Lucene index.  A first pass over the
+   *  term vectors counts the bigrams of frequent terms and chooses the
+   *  frequent bigrams.  Later passes accumulate the inverted lists of
+   *  as many chosen bigrams as fit in BUILD_BUFFER_SIZE bytes, and
+   *  append them to the file, until every list is written.
+   *  @param indexPath The Lucene index.  It must store term vectors.
+   *  @param outputPath The bigram index file to write.
+   *  @param fields The fields to index.
+   *  @param minDf Bigrams are indexed if they occur in at least this
+   *         many documents.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   *  @throws IllegalArgumentException The inverted list of a bigram
+   *          would be larger than 2 GB.
+   */
+  public static void build (String indexPath, String outputPath,
+                            String[] fields, int minDf)
+    throws IOException, IllegalArgumentException {
+
+    Idx.open (indexPath);
+    IndexReader reader = Idx.INDEXREADER;
+
+    //  Choose the bigrams of each field.  They are sorted, so that
+    //  the file is deterministic.
+
+    Map<String,List<Bigram>> chosen = new LinkedHashMap<String,List<Bigram>> ();
+    int numLists = 0;
+
+    for (String field : fields) {
+      List<Bigram> bigrams = chooseBigrams (reader, field, minDf);
+      chosen.put (field, bigrams);
+      numLists += bigrams.size ();
+    }
+
+    try (DataOutputStream out =
+           new DataOutputStream (new BufferedOutputStream (new FileOutputStream (outputPath)))) {
+
+      //  Write the header and the directory.
+
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeInt (reader.maxDoc ());
+      out.writeLong (fingerprint (reader));
+      out.writeInt (numLists);
+
+      long offset = 0;
+
+      for (Map.Entry<String,List<Bigram>> e : chosen.entrySet ()) {
+        for (Bigram bigram : e.getValue ()) {
+          out.writeUTF (e.getKey ());
+          out.writeUTF (bigram.term1);
+          out.writeUTF (bigram.term2);
+          out.writeInt (bigram.df);
+          out.writeInt (bigram.ctf);
+          out.writeLong (offset);
+          offset += bigram.size ();
+        }
+      }
+
+      //  Write the postings, a batch of lists at a time.
+
+      for (Map.Entry<String,List<Bigram>> e : chosen.entrySet ()) {
+        List<Bigram> bigrams = e.getValue ();
+        int from = 0;
+
+        while (from < bigrams.size ()) {
+          int to = from + 1;
+          long batchSize = bigrams.get (from).size ();
+
+          while ((to < bigrams.size ()) &&
+                 (batchSize + bigrams.get (to).size () <= BUILD_BUFFER_SIZE)) {
+            batchSize += bigrams.get (to).size ();
+            to ++;
+          }
+
+          writeBatch (reader, e.getKey (), bigrams.subList (from, to), out);
+          from = to;
+        }
+      }
+    }
+
+    System.out.println ("Indexed " + numLists + " bigrams.");
+  }
+
+  /**
+   *  Count the bigrams of a field whose terms both occur in at least
+   *  minDf documents (other bigrams can't be frequent), and choose the
+   *  ones that occur in at least minDf documents.
+   *  @param reader The Lucene index.
+   *  @param field The field.
+   *  @param minDf The minimum document frequency of a chosen bigram.
+   *  @return The chosen bigrams, sorted by their terms.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException The inverted list of a bigram
+   *          would be larger than 2 GB.
+   */
+  private static List<Bigram> chooseBigrams (IndexReader reader, String field, int minDf)
+    throws IOException, IllegalArgumentException {
+
+    List<Bigram> bigrams = new ArrayList<Bigram> ();
+    Terms terms = MultiFields.getTerms (reader, field);
+
+    if (terms == null) {
+      return bigrams;
+    }
+
+    //  Number the frequent terms.
+
+    Map<String,Integer> termIds = new HashMap<String,Integer> ();
+    List<String> termStrings = new ArrayList<String> ();
+    TermsEnum ithTerm = terms.iterator ();
+
+    while (ithTerm.next () != null) {
+      if (ithTerm.docFreq () >= minDf) {
+        termIds.put (ithTerm.term ().utf8ToString (), termStrings.size ());
+        termStrings.add (ithTerm.term ().utf8ToString ());
+      }
+    }
+
+    //  Count the df and ctf of each bigram of frequent terms.  The key
+    //  is the two term ids; the value is { df, ctf, last docid }.
+
+    Map<Long,int[]> counts = new HashMap<Long,int[]> ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++) {
+
+      if ((liveDocs != null) && (! liveDocs.get (docid))) {
+        continue;
+      }
+
+      TermVector tv = new TermVector (docid, field);
+      int[] ids = stemIds (tv, termIds);
+
+      for (int p = 0; p + 1 < tv.positionsLength (); p++) {
+        long pair = pair (tv, ids, p);
+
+        if (pair < 0) {
+          continue;
+        }
+
+        int[] c = counts.get (pair);
+
+        if (c == null) {
+          c = new int[] { 0, 0, -1 };
+          counts.put (pair, c);
+        }
+
+        if (c[2] != docid) {
+          c[0] ++;
+          c[2] = docid;
+        }
+
+        c[1] ++;
+      }
+    }
+
+    for (Map.Entry<Long,int[]> e : counts.entrySet ()) {
+      int[] c = e.getValue ();
+
+      if (c[0] >= minDf) {
+        long pair = e.getKey ();
+        Bigram bigram =
+          new Bigram (termStrings.get ((int) (pair >>> 32)),
+                      termStrings.get ((int) (pair & 0xFFFFFFFFL)), c[0], c[1]);
+
+        if (bigram.size () > MAX_SEGMENT_SIZE) {
+          throw new IllegalArgumentException (
+            "The inverted list of " + key (bigram.term1, bigram.term2, field) +
+            " is larger than 2 GB.  Use a larger MIN_DF.");
+        }
+
+        bigrams.add (bigram);
+      }
+    }
+
+    Collections.sort (bigrams, new Comparator<Bigram> () {
+      public int compare (Bigram a, Bigram b) {
+        int c = a.term1.compareTo (b.term1);
+        return (c != 0) ? c : a.term2.compareTo (b.term2);
+      }
+    });
+
+    return bigrams;
+  }
+
+  /**
+   *  Accumulate the inverted lists of a batch of bigrams of a field,
+   *  and write their postings.
+   *  @param reader The Lucene index.
+   *  @param field The field.
+   *  @param batch The bigrams, in directory order.
+   *  @param out The bigram index file.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  private static void writeBatch (IndexReader reader, String field,
+                                  List<Bigram> batch, DataOutputStream out)
+    throws IOException {
+
+    //  Only the bigrams of the batch's terms are looked up.
+
+    Map<String,Integer> termIds = new HashMap<String,Integer> ();
+    Map<Long,Bigram> bigrams = new HashMap<Long,Bigram> ();
+
+    for (Bigram bigram : batch) {
+      Integer id1 = termIds.get (bigram.term1);
+      Integer id2 = termIds.get (bigram.term2);
+
+      if (id1 == null) {
+        id1 = termIds.size ();
+        termIds.put (bigram.term1, id1);
+      }
+
+      if (id2 == null) {
+        id2 = termIds.size ();
+        termIds.put (bigram.term2, id2);
+      }
+
+      bigram.data = new int[(int) (bigram.size () / 4)];
+      bigrams.put (((long) id1 << 32) | id2, bigram);
+    }
+
+    //  Documents are visited in docid order, so postings are appended
+    //  in order.  A document's locations are appended in order too,
+    //  after its docid and tf.
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++) {
+
+      if ((liveDocs != null) && (! liveDocs.get (docid))) {
+        continue;
+      }
+
+      TermVector tv = new TermVector (docid, field);
+      int[] ids = stemIds (tv, termIds);
+
+      for (int p = 0; p + 1 < tv.positionsLength (); p++) {
+        long pair = pair (tv, ids, p);
+        Bigram bigram = (pair < 0) ? null : bigrams.get (pair);
+
+        if (bigram == null) {
+          continue;
+        }
+
+        if (bigram.lastDocid != docid) {
+          bigram.data[bigram.length ++] = docid;
+          bigram.tfIndex = bigram.length ++;
+          bigram.lastDocid = docid;
+        }
+
+        bigram.data[bigram.tfIndex] ++;
+        bigram.data[bigram.length ++] = p + 1;
+      }
+    }
+
+    for (Bigram bigram : batch) {
+      for (int i = 0; i < bigram.length; i++) {
+        out.writeInt (bigram.data[i]);
+      }
+
+      bigram.data = null;
+    }
+  }
+
+  /**
+   *  Look up the ids of the stems of a term vector.
+   *  @param tv The term vector.
+   *  @param termIds The ids of the terms that matter.
+   *  @return The id of each stem, or -1 if it has none.
+   */
+  private static int[] stemIds (TermVector tv, Map<String,Integer> termIds) {
+    int[] ids = new int[tv.stemsLength ()];
+
+    for (int i = 0; i < ids.length; i++) {
+      Integer id = (i == 0) ? null : termIds.get (tv.stemString (i));
+      ids[i] = (id == null) ? -1 : id;
+    }
+
+    return ids;
+  }
+
+  /**
+   *  Get the key of the bigram that starts at a position of a term
+   *  vector.
+   *  @param tv The term vector.
+   *  @param ids The id of each stem (see stemIds).
+   *  @param p The position.
+   *  @return The two term ids, or -1 if either stem has no id, is a
+   *          stopword, or if they are the same term.
+   */
+  private static long pair (TermVector tv, int[] ids, int p) {
+    int a = tv.stemAt (p);
+    int b = tv.stemAt (p + 1);
+
+    //  0 is a stopword or an unused position.
+
+    if ((a <= 0) || (b <= 0) || (a == b) || (ids[a] < 0) || (ids[b] < 0)) {
+      return -1;
+    }
+
+    return ((long) ids[a] << 32) | ids[b];
+  }
+
+  /**
+   *  Get the inverted list of a bigram.
+   *  @param term1 The first term.
+   *  @param term2 The second term.
+   *  @param field The field.
+   *  @return The inverted list, or null if the bigram isn't indexed.
+   */
+  public InvList getInvList (String term1, String term2, String field) {
+
+    int[] entry = this.directory.get (key (term1, term2, field));
+
+    if (entry == null) {
+      return null;
+    }
+
+    MappedByteBuffer buffer = this.postings[entry[0]];
+    InvList list = new InvList (field);
+    int[] locations = new int[16];
+    int p = entry[1];
+
+    for (int i = 0; i < entry[2]; i++) {
+      int docid = buffer.getInt (p);
+      int tf = buffer.getInt (p + 4);
+      p += 8;
+
+      if (tf > locations.length) {
+        locations = new int[Math.max (tf, locations.length * 2)];
+      }
+
+      for (int j = 0; j < tf; j++, p += 4) {
+        locations[j] = buffer.getInt (p);
+      }
+
+      list.appendPosting (docid, locations, tf);
+    }
+
+    return list;
+  }
+
+  /**
+   *  A value that changes if documents are added to or removed from
+   *  the index:  the total length of every field.
+   */
+  private static long fingerprint (IndexReader reader) throws IOException {
+    long sum = 0;
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      sum = 31 * sum + reader.getSumTotalTermFreq (field);
+    }
+
+    return sum;
+  }
+
+  private static String key (String term1, String term2, String field) {
+    return field + ":" + term1 + " " + term2;
+  }
+
+  /**
+   *  The number of bytes that DataOutput.writeUTF writes for a string.
+   */
+  private static int utfLength (String s) {
+    int n = 2;
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+      n += ((c >= 0x0001) && (c <= 0x007F)) ? 1 : (c > 0x07FF) ? 3 : 2;
+    }
+
+    return n;
+  }
+
+  /**
+   *  Build a bigram index.
+   *  @param args INDEX_PATH OUTPUT_PATH [MIN_DF [FIELD ...]]
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.err.println (
+        "Usage:  java support.BigramIndex INDEX_PATH OUTPUT_PATH [MIN_DF [FIELD ...]]");
+      System.exit (1);
+    }
+
+    int minDf = (args.length > 2) ? Integer.parseInt (args[2]) : DEFAULT_MIN_DF;
+    String[] fields = (args.length > 3) ?
+      Arrays.copyOfRange (args, 3, args.length) : DEFAULT_FIELDS;
+
+    build (args[0], args[1], fields, minDf);
+  }
+}
@@ -0,0 +1,566 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A compressed set of internal document ids, organized the way that
+ *  "roaring" bitmaps are.  The docid space is divided into chunks of
+ *  65536 docids that share their high 16 bits.  Each nonempty chunk
+ *  has a container that stores the low 16 bits of its docids:  a
+ *  sorted array if the chunk has at most ARRAY_MAX docids, otherwise
+ *  a 65536-bit bitmap.  Sparse sets therefore cost 2 bytes per docid,
+ *  dense sets at most 8 KB per chunk, and intersections and unions
+ *  work on whole 64-bit words when both containers are dense.
+ *  <p>
+ *  A DocIdBitmap is built by adding docids in increasing order (e.g.,
+ *  from an inverted list), and then combined with and and or, which
+ *  create new bitmaps.  It is not modified after it is built, so it
+ *  may be shared (e.g., by FilterCache), and read in docid order by
+ *  any number of DocIterators.
+ *  </p>
+ */
+public class DocIdBitmap {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The docid that a DocIterator returns when it has no more docids.
+   */
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   *  The largest number of docids in an array container.  At this
+   *  size an array and a bitmap use the same amount of memory.
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  /**
+   *  The high 16 bits of the docids in each container, in increasing
+   *  order.  Only the first size entries are valid.
+   */
+  private char[] keys;
+  private Container[] containers;
+  private int size = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  public DocIdBitmap () {
+    this (4);
+  }
+
+  private DocIdBitmap (int capacity) {
+    this.keys = new char[Math.max (capacity, 1)];
+    this.containers = new Container[this.keys.length];
+  }
+
+  /**
+   *  Create a bitmap of the documents in an inverted list.
+   *  @param list The inverted list.
+   *  @return The bitmap.
+   */
+  public static DocIdBitmap of (InvList list) {
+    DocIdBitmap bitmap = new DocIdBitmap ();
+
+    for (int i = 0; i < list.df; i++) {
+      bitmap.add (list.getDocid (i));
+    }
+
+    return bitmap;
+  }
+
+  /**
+   *  Add a docid.  Docids must be added in increasing order.
+   *  @param docid A nonnegative internal document id that is larger
+   *         than any docid added before.
+   */
+  public void add (int docid) {
+    char key = (char) (docid >>> 16);
+
+    if ((this.size == 0) || (this.keys[this.size - 1] != key)) {
+      this.append (key, new ArrayContainer (4));
+    }
+
+    this.containers[this.size - 1] =
+      this.containers[this.size - 1].add ((char) docid);
+  }
+
+  /**
+   *  Intersect two bitmaps.
+   *  @param a A bitmap.
+   *  @param b Another bitmap.
+   *  @return A new bitmap of the docids that are in both a and b.
+   */
+  public static DocIdBitmap and (DocIdBitmap a, DocIdBitmap b) {
+    DocIdBitmap result = new DocIdBitmap (Math.min (a.size, b.size));
+    int i = 0;
+    int j = 0;
+
+    while ((i < a.size) && (j < b.size)) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        Container c = a.containers[i].and (b.containers[j]);
+
+        if (c.cardinality () > 0) {
+          result.append (a.keys[i], c);
+        }
+
+        i++;
+        j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Unite two bitmaps.
+   *  @param a A bitmap.
+   *  @param b Another bitmap.
+   *  @return A new bitmap of the docids that are in a or b.
+   */
+  public static DocIdBitmap or (DocIdBitmap a, DocIdBitmap b) {
+    DocIdBitmap result = new DocIdBitmap (a.size + b.size);
+    int i = 0;
+    int j = 0;
+
+    //  Containers that are only in one bitmap are shared, which is
+    //  safe because containers aren't modified after they are built.
+
+    while ((i < a.size) || (j < b.size)) {
+      if ((j == b.size) || ((i < a.size) && (a.keys[i] < b.keys[j]))) {
+        result.append (a.keys[i], a.containers[i]);
+        i++;
+      } else if ((i == a.size) || (a.keys[i] > b.keys[j])) {
+        result.append (b.keys[j], b.containers[j]);
+        j++;
+      } else {
+        result.append (a.keys[i], a.containers[i].or (b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  @return The number of docids in the bitmap.
+   */
+  public int cardinality () {
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      n += this.containers[i].cardinality ();
+    }
+
+    return n;
+  }
+
+  /**
+   *  Get the docids in the bitmap.
+   *  @return The docids, in increasing order.
+   */
+  public int[] toArray () {
+    int[] docids = new int[this.cardinality ()];
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      n = this.containers[i].toArray (this.keys[i] << 16, docids, n);
+    }
+
+    return docids;
+  }
+
+  /**
+   *  @return A new iterator over the docids in the bitmap.
+   */
+  public DocIterator iterator () {
+    return new DocIterator ();
+  }
+
+  /**
+   *  @return The approximate memory used by the bitmap, in bytes.
+   */
+  public long getSizeInBytes () {
+    long bytes = 16 + 6L * this.keys.length;
+
+    for (int i = 0; i < this.size; i++) {
+      bytes += this.containers[i].getSizeInBytes ();
+    }
+
+    return bytes;
+  }
+
+  /**
+   *  Append a container whose key is larger than every other key.
+   */
+  private void append (char key, Container c) {
+    if (this.size == this.keys.length) {
+      this.keys = Arrays.copyOf (this.keys, this.size * 2);
+      this.containers = Arrays.copyOf (this.containers, this.size * 2);
+    }
+
+    this.keys[this.size] = key;
+    this.containers[this.size] = c;
+    this.size++;
+  }
+
+  //  --------------- Iterator --------------------------------------
+
+  /**
+   *  Iterates over the docids of the bitmap in increasing order.
+   *  advance skips whole containers by their keys, and searches
+   *  within a container instead of visiting each docid.
+   */
+  public class DocIterator {
+
+    /**
+     *  The index of the current container.
+     */
+    private int c = 0;
+
+    /**
+     *  The current docid, -1 before the first call, or NO_MORE_DOCS.
+     */
+    private int docid = -1;
+
+    /**
+     *  Move to the next docid.
+     *  @return The docid, or NO_MORE_DOCS.
+     */
+    public int next () {
+      return (this.docid == NO_MORE_DOCS) ? NO_MORE_DOCS : this.advance (this.docid + 1);
+    }
+
+    /**
+     *  Move to the first docid that is at least target.  The iterator
+     *  doesn't move backwards.
+     *  @param target An internal document id.
+     *  @return The docid, or NO_MORE_DOCS.
+     */
+    public int advance (int target) {
+
+      if (target <= this.docid) {
+        return this.docid;
+      }
+
+      while (this.c < DocIdBitmap.this.size) {
+        int key = DocIdBitmap.this.keys[this.c];
+
+        if (key < (target >>> 16)) {
+          this.c++;
+          continue;
+        }
+
+        int low = (key == (target >>> 16)) ? (target & 0xFFFF) : 0;
+        int value = DocIdBitmap.this.containers[this.c].nextValue (low);
+
+        if (value >= 0) {
+          this.docid = (key << 16) | value;
+          return this.docid;
+        }
+
+        this.c++;
+      }
+
+      this.docid = NO_MORE_DOCS;
+      return this.docid;
+    }
+  }
+
+  //  --------------- Containers ------------------------------------
+
+  /**
+   *  The low 16 bits of the docids in one chunk.  Operations return
+   *  the container that best fits their result, which may be this
+   *  container (add) or a new one (and, or).
+   */
+  private static abstract class Container {
+
+    abstract int cardinality ();
+
+    abstract boolean contains (char value);
+
+    /**
+     *  Get the first value that is at least low.
+     *  @return The value, or -1 if there is none.
+     */
+    abstract int nextValue (int low);
+
+    /**
+     *  Add a value that is larger than any value in the container.
+     */
+    abstract Container add (char value);
+
+    abstract Container and (Container c);
+
+    abstract Container or (Container c);
+
+    /**
+     *  Copy the docids to out[n..], adding high to each value.
+     *  @return The index after the last docid copied.
+     */
+    abstract int toArray (int high, int[] out, int n);
+
+    abstract long getSizeInBytes ();
+  }
+
+  /**
+   *  A sorted array of at most ARRAY_MAX values.
+   */
+  private static final class ArrayContainer extends Container {
+
+    private char[] values;
+    private int n = 0;
+
+    ArrayContainer (int capacity) {
+      this.values = new char[Math.max (capacity, 1)];
+    }
+
+    int cardinality () {
+      return this.n;
+    }
+
+    boolean contains (char value) {
+      return Arrays.binarySearch (this.values, 0, this.n, value) >= 0;
+    }
+
+    int nextValue (int low) {
+      int i = Arrays.binarySearch (this.values, 0, this.n, (char) low);
+
+      if (i < 0) {
+        i = -i - 1;
+      }
+
+      return (i < this.n) ? this.values[i] : -1;
+    }
+
+    Container add (char value) {
+      if (this.n == ARRAY_MAX) {
+        return BitmapContainer.of (this).add (value);
+      }
+
+      if (this.n == this.values.length) {
+        this.values = Arrays.copyOf (this.values, Math.min (this.n * 2, ARRAY_MAX));
+      }
+
+      this.values[this.n++] = value;
+      return this;
+    }
+
+    Container and (Container c) {
+      ArrayContainer result = new ArrayContainer (Math.min (this.n, c.cardinality ()));
+
+      if (c instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) c;
+        int i = 0;
+        int j = 0;
+
+        while ((i < this.n) && (j < a.n)) {
+          if (this.values[i] < a.values[j]) {
+            i++;
+          } else if (this.values[i] > a.values[j]) {
+            j++;
+          } else {
+            result.values[result.n++] = this.values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < this.n; i++) {
+          if (c.contains (this.values[i])) {
+            result.values[result.n++] = this.values[i];
+          }
+        }
+      }
+
+      return result;
+    }
+
+    Container or (Container c) {
+      if (c instanceof BitmapContainer) {
+        return c.or (this);
+      }
+
+      ArrayContainer a = (ArrayContainer) c;
+
+      if (this.n + a.n > ARRAY_MAX) {
+        return BitmapContainer.of (this).or (a);
+      }
+
+      ArrayContainer result = new ArrayContainer (this.n + a.n);
+      int i = 0;
+      int j = 0;
+
+      while ((i < this.n) || (j < a.n)) {
+        if ((j == a.n) || ((i < this.n) && (this.values[i] < a.values[j]))) {
+          result.values[result.n++] = this.values[i++];
+        } else if ((i == this.n) || (this.values[i] > a.values[j])) {
+          result.values[result.n++] = a.values[j++];
+        } else {
+          result.values[result.n++] = this.values[i];
+          i++;
+          j++;
+        }
+      }
+
+      return result;
+    }
+
+    int toArray (int high, int[] out, int n) {
+      for (int i = 0; i < this.n; i++) {
+        out[n++] = high | this.values[i];
+      }
+
+      return n;
+    }
+
+    long getSizeInBytes () {
+      return 24 + 2L * this.values.length;
+    }
+  }
+
+  /**
+   *  A bitmap of 65536 bits, for chunks that have more than ARRAY_MAX
+   *  values.
+   */
+  private static final class BitmapContainer extends Container {
+
+    private final long[] words = new long[1024];
+    private int n = 0;
+
+    static BitmapContainer of (ArrayContainer a) {
+      BitmapContainer result = new BitmapContainer ();
+
+      for (int i = 0; i < a.n; i++) {
+        result.set (a.values[i]);
+      }
+
+      return result;
+    }
+
+    private void set (char value) {
+      long bit = 1L << value;
+
+      if ((this.words[value >>> 6] & bit) == 0) {
+        this.words[value >>> 6] |= bit;
+        this.n++;
+      }
+    }
+
+    int cardinality () {
+      return this.n;
+    }
+
+    boolean contains (char value) {
+      return (this.words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    int nextValue (int low) {
+      int i = low >>> 6;
+      long w = this.words[i] & (-1L << low);
+
+      while (w == 0) {
+        if (++i == this.words.length) {
+          return -1;
+        }
+        w = this.words[i];
+      }
+
+      return (i << 6) | Long.numberOfTrailingZeros (w);
+    }
+
+    Container add (char value) {
+      this.set (value);
+      return this;
+    }
+
+    Container and (Container c) {
+      if (c instanceof ArrayContainer) {
+        return c.and (this);
+      }
+
+      BitmapContainer b = (BitmapContainer) c;
+      BitmapContainer result = new BitmapContainer ();
+
+      for (int i = 0; i < this.words.length; i++) {
+        result.words[i] = this.words[i] & b.words[i];
+        result.n += Long.bitCount (result.words[i]);
+      }
+
+      return (result.n > ARRAY_MAX) ? result : result.toArrayContainer ();
+    }
+
+    Container or (Container c) {
+      BitmapContainer result = new BitmapContainer ();
+      System.arraycopy (this.words, 0, result.words, 0, this.words.length);
+      result.n = this.n;
+
+      if (c instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) c;
+
+        for (int i = 0; i < a.n; i++) {
+          result.set (a.values[i]);
+        }
+      } else {
+        BitmapContainer b = (BitmapContainer) c;
+        result.n = 0;
+
+        for (int i = 0; i < this.words.length; i++) {
+          result.words[i] |= b.words[i];
+          result.n += Long.bitCount (result.words[i]);
+        }
+      }
+
+      return result;
+    }
+
+    private ArrayContainer toArrayContainer () {
+      ArrayContainer result = new ArrayContainer (this.n);
+      result.n = this.toValues (result.values);
+      return result;
+    }
+
+    /**
+     *  Copy the values to out, in increasing order.
+     *  @return The number of values.
+     */
+    private int toValues (char[] out) {
+      int n = 0;
+
+      for (int i = 0; i < this.words.length; i++) {
+        long w = this.words[i];
+
+        while (w != 0) {
+          out[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros (w));
+          w &= w - 1;
+        }
+      }
+
+      return n;
+    }
+
+    int toArray (int high, int[] out, int n) {
+      for (int i = 0; i < this.words.length; i++) {
+        long w = this.words[i];
+
+        while (w != 0) {
+          out[n++] = high | (i << 6) | Long.numberOfTrailingZeros (w);
+          w &= w - 1;
+        }
+      }
+
+      return n;
+    }
+
+    long getSizeInBytes () {
+      return 24 + 8L * this.words.length;
+    }
+  }
+}
@@ -4,6 +4,7 @@ package support;
  */
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.lucene.index.IndexReader;
@@ -13,23 +14,108 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Each field is assigned a small integer field id when the store is
+ * created, so callers that look up many lengths in the same field can
+ * resolve the field name once and then use
+ * {@link #getDocLength(int, int)}.  Optionally, the lengths of every
+ * field are preloaded into dense int arrays, so that a lookup is a
+ * single array access instead of a Lucene norms lookup.  The arrays
+ * use 4 bytes per document per field.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+  private int[][] lengths = null;
+
+  /**
+   * Lucene's norms iterators are not thread-safe, so each thread that reads
+   * lengths that are not preloaded gets its own.
+   */
+  private ThreadLocal<NumericDocValues[]> values = new ThreadLocal<NumericDocValues[]>() {
+    @Override
+    protected NumericDocValues[] initialValue() {
+      try {
+        return openNormValues();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  };
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, false);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param preload If true, copy the lengths of every field into memory.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, boolean preload) throws IOException {
     this.reader = reader;
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      this.fieldIds.put(field, this.fieldIds.size());
+    }
+
+    if (preload) {
+      NumericDocValues[] norms = openNormValues();
+      int maxDoc = reader.maxDoc();
+      this.lengths = new int[norms.length][];
+
+      for (int f = 0; f < norms.length; f++) {
+
+        //  Fields that don't have norms (e.g., externalId) have no lengths.
+
+        if (norms[f] == null) {
+          continue;
+        }
+
+        int[] l = new int[maxDoc];
+
+        for (int docid = 0; docid < maxDoc; docid++) {
+          l[docid] = (int) norms[f].get(docid);
+        }
+
+        this.lengths[f] = l;
+      }
     }
   }
 
+  /**
+   * Open the norms of every field, indexed by field id.
+   *
+   * @return The norms, or null for fields that don't have norms.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private NumericDocValues[] openNormValues() throws IOException {
+    NumericDocValues[] norms = new NumericDocValues[this.fieldIds.size()];
+
+    for (Map.Entry<String, Integer> e : this.fieldIds.entrySet()) {
+      norms[e.getValue()] = MultiDocValues.getNormValues(this.reader, e.getKey());
+    }
+
+    return norms;
+  }
+
+  /**
+   * Returns the field id of the specified field.
+   *
+   * @param fieldname Name of field.
+   * @return The field id, or -1 if the field is not indexed.
+   */
+  public int getFieldId(String fieldname) {
+    Integer id = this.fieldIds.get(fieldname);
+    return (id == null) ? -1 : id;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -40,6 +126,21 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(this.fieldIds.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldId The field id returned by {@link #getFieldId(String)}.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int fieldId, int docid) throws IOException {
+    if (this.lengths != null) {
+      return this.lengths[fieldId][docid];
+    }
+    return this.values.get()[fieldId].get(docid);
   }
 }
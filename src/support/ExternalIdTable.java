@@ -0,0 +1,225 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  An in-memory table that maps internal document ids to external
+ *  document ids and back.  Looking up an external id in the index
+ *  requires decompressing a block of stored fields; looking it up in
+ *  the table is a few array reads.
+ *  <p>
+ *  The external ids are stored as UTF-8 bytes, back to back, in one
+ *  byte pool; offsets[docid] is the start of a document's id and
+ *  offsets[docid+1] is its end.  The reverse mapping is an
+ *  open-addressing hash table of internal docids, keyed by the hash of
+ *  the external id bytes.
+ *  </p><p>
+ *  The table is built when an index is opened.  It reads the indexed
+ *  (not stored) externalId field, so building it does not decompress
+ *  stored fields either.  The table is immutable after it is built.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int EMPTY = -1;
+
+  /**
+   *  The external ids, as UTF-8 bytes, in internal docid order.
+   */
+  private final byte[] pool;
+
+  /**
+   *  The start of each document's external id in the pool.  There is
+   *  one more entry than there are documents.
+   */
+  private final int[] offsets;
+
+  /**
+   *  Open-addressing hash table of internal docids.  EMPTY marks an
+   *  unused slot.  Its size is a power of 2.
+   */
+  private final int[] slots;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Build the table for an index.
+   *  @param reader The index.
+   *  @param fieldName The field that stores external ids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ExternalIdTable (IndexReader reader, String fieldName)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Terms terms = MultiFields.getTerms (reader, fieldName);
+    int[] lengths = new int[maxDoc];
+    BytesRef[] stored = null;
+
+    //  Pass 1:  Find the length of each document's external id.  If the
+    //  field isn't indexed, fall back to stored fields.
+
+    if (terms != null) {
+      TermsEnum te = terms.iterator ();
+      PostingsEnum pe = null;
+      BytesRef t;
+
+      while ((t = te.next ()) != null) {
+        pe = te.postings (pe, PostingsEnum.NONE);
+
+        while (pe.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          lengths[pe.docID ()] = t.length;
+        }
+      }
+    } else {
+      stored = new BytesRef[maxDoc];
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        Document doc = reader.document (docid);
+        String eid = doc.get (fieldName);
+
+        if (eid != null) {
+          stored[docid] = new BytesRef (eid);
+          lengths[docid] = stored[docid].length;
+        }
+      }
+    }
+
+    this.offsets = new int[maxDoc + 1];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      this.offsets[docid + 1] = this.offsets[docid] + lengths[docid];
+    }
+
+    //  Pass 2:  Copy the external ids into the pool.
+
+    this.pool = new byte[this.offsets[maxDoc]];
+
+    if (terms != null) {
+      TermsEnum te = terms.iterator ();
+      PostingsEnum pe = null;
+      BytesRef t;
+
+      while ((t = te.next ()) != null) {
+        pe = te.postings (pe, PostingsEnum.NONE);
+
+        while (pe.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          System.arraycopy (t.bytes, t.offset, this.pool,
+                            this.offsets[pe.docID ()], t.length);
+        }
+      }
+    } else {
+      for (int docid = 0; docid < maxDoc; docid++) {
+        if (stored[docid] != null) {
+          System.arraycopy (stored[docid].bytes, stored[docid].offset,
+                            this.pool, this.offsets[docid], stored[docid].length);
+        }
+      }
+    }
+
+    //  Build the reverse index.  The load factor is at most 0.5.
+    //  Deleted documents are left out, so that an external id that was
+    //  re-indexed maps to its live copy.
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int size = Integer.highestOneBit (Math.max (2, maxDoc)) << 2;
+    this.slots = new int[size];
+    Arrays.fill (this.slots, EMPTY);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      int len = this.offsets[docid + 1] - this.offsets[docid];
+
+      if ((len == 0) || ((liveDocs != null) && ! liveDocs.get (docid))) {
+        continue;
+      }
+
+      int slot = hash (this.pool, this.offsets[docid], len) & (size - 1);
+
+      while (this.slots[slot] != EMPTY) {
+        slot = (slot + 1) & (size - 1);
+      }
+
+      this.slots[slot] = docid;
+    }
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if the document has none.
+   */
+  public String getExternalDocid (int docid) {
+    int len = this.offsets[docid + 1] - this.offsets[docid];
+
+    if (len == 0) {
+      return null;
+    }
+
+    return new String (this.pool, this.offsets[docid], len,
+                       StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal document id of a document.
+   *  @param externalId An external document id.
+   *  @return The internal document id, or -1 if there is no such document.
+   */
+  public int getInternalDocid (String externalId) {
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int mask = this.slots.length - 1;
+    int slot = hash (key, 0, key.length) & mask;
+
+    while (this.slots[slot] != EMPTY) {
+      int docid = this.slots[slot];
+      int start = this.offsets[docid];
+
+      if ((this.offsets[docid + 1] - start == key.length) &&
+          equals (this.pool, start, key)) {
+        return docid;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Estimate the number of bytes of heap used by the table.
+   *  @return The estimated size in bytes.
+   */
+  public long getMemoryUsage () {
+    return (this.pool.length + 4L * this.offsets.length +
+            4L * this.slots.length);
+  }
+
+  private static boolean equals (byte[] pool, int start, byte[] key) {
+    for (int i = 0; i < key.length; i++) {
+      if (pool[start + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash (byte[] b, int start, int len) {
+    int h = 0;
+
+    for (int i = start; i < start + len; i++) {
+      h = 31 * h + b[i];
+    }
+
+    return h ^ (h >>> 16);
+  }
+}
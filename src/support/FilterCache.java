@@ -0,0 +1,162 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A size-bounded cache of the documents that query subtrees match
+ *  (e.g., a restriction such as #OR (gov.url state.url)), stored as
+ *  DocIdBitmaps and keyed by a string that identifies the subtree.
+ *  Query logs reuse the same restrictions over and over, and a cached
+ *  bitmap avoids reading and combining their inverted lists again.
+ *  <p>
+ *  Most subtrees are never seen twice, so a bitmap is only admitted
+ *  when its key has missed before.  The cache remembers the keys of
+ *  the last MAX_CANDIDATES misses for this purpose.  The capacity is a
+ *  number of bytes.  When the cache is full, the least recently used
+ *  bitmaps are evicted.  Bitmaps larger than the whole cache are not
+ *  cached.
+ *  </p><p>
+ *  Bitmaps are only valid for the index generation that produced
+ *  them.  When a bitmap from a newer IndexContext is requested or
+ *  added, every cached bitmap is discarded.  Requests for an older
+ *  generation bypass the cache.  The eviction and generation rules
+ *  are LruCache's.  Cached bitmaps are shared, so they must not be
+ *  modified.
+ *  </p>
+ */
+public class FilterCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  An estimate of the memory used by an entry, apart from its key
+   *  characters and its bitmap.
+   */
+  private static final long ENTRY_OVERHEAD = 96;
+
+  /**
+   *  The number of recently missed keys that are remembered.
+   */
+  private static final int MAX_CANDIDATES = 10000;
+
+  private final LruCache<DocIdBitmap> filters;
+
+  /**
+   *  The number of times that each recently missed key has missed, for
+   *  the index generation of the cached bitmaps.
+   */
+  private final LinkedHashMap<String,Integer> candidates =
+    new LinkedHashMap<String,Integer> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String,Integer> eldest) {
+        return this.size () > MAX_CANDIDATES;
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The maximum number of bytes of bitmaps to keep.
+   *         A capacity of 0 disables caching.
+   */
+  public FilterCache (long capacity) {
+    this.filters = new LruCache<DocIdBitmap> (capacity);
+  }
+
+  /**
+   *  Get a cached bitmap.
+   *  @param context The index that the subtree is evaluated against.
+   *  @param key Identifies the subtree.
+   *  @return The shared bitmap, or null if it isn't cached.
+   */
+  public synchronized DocIdBitmap get (IndexContext context, String key) {
+
+    if (! this.filters.isEnabled ()) {
+      return null;
+    }
+
+    long g = context.getGeneration ();
+    long previous = this.filters.getGeneration ();
+    DocIdBitmap bitmap = this.filters.get (g, key);
+
+    //  A newer generation discards the cached bitmaps, so forget the
+    //  misses of the old one too.  Requests of an older generation
+    //  bypass the cache and don't count towards admission.
+
+    if (this.filters.getGeneration () != previous) {
+      this.candidates.clear ();
+    }
+
+    if ((bitmap == null) && (g == this.filters.getGeneration ())) {
+      Integer count = this.candidates.get (key);
+      this.candidates.put (key, (count == null) ? 1 : count + 1);
+    }
+
+    return bitmap;
+  }
+
+  /**
+   *  Add a bitmap to the cache if its key has missed more than once,
+   *  evicting least recently used bitmaps until it fits.
+   *  @param context The index that the bitmap was computed with.
+   *  @param key Identifies the subtree.
+   *  @param bitmap The documents that the subtree matches.  It must
+   *         not be modified afterwards.
+   */
+  public synchronized void put (IndexContext context, String key, DocIdBitmap bitmap) {
+
+    if ((! this.filters.isEnabled ()) ||
+        (context.getGeneration () != this.filters.getGeneration ())) {
+      return;
+    }
+
+    Integer count = this.candidates.get (key);
+
+    if ((count == null) || (count < 2)) {
+      return;
+    }
+
+    this.candidates.remove (key);
+    this.filters.put (context.getGeneration (), key, bitmap,
+                      ENTRY_OVERHEAD + 2L * key.length () + bitmap.getSizeInBytes ());
+  }
+
+  /**
+   *  @return The number of bytes used by cached bitmaps.
+   */
+  public long getBytesUsed () {
+    return this.filters.getBytesUsed ();
+  }
+
+  /**
+   *  @return The number of requests satisfied from the cache.
+   */
+  public long getHits () {
+    return this.filters.getHits ();
+  }
+
+  /**
+   *  @return The number of requests that were not cached.
+   */
+  public long getMisses () {
+    return this.filters.getMisses ();
+  }
+
+  /**
+   *  @return The fraction of requests satisfied from the cache, or 0
+   *          if there were no requests.
+   */
+  public double getHitRate () {
+    return this.filters.getHitRate ();
+  }
+
+  /**
+   *  Get a one-line summary of the cache's activity.
+   *  @return The summary.
+   */
+  @Override
+  public String toString () {
+    return this.filters.toString ();
+  }
+}
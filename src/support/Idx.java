@@ -6,11 +6,8 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -28,18 +25,61 @@ public class Idx {
   //  --------------- Constants and variables ---------------------
 
   /**
-   *  The Lucene index that is considered the current index.
+   *  The Lucene index that is considered the current index.  Query
+   *  evaluation uses an IndexContext instead; this is kept for tools
+   *  (e.g., TermVector) that work with the current index.
    */
   public static IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  /**
+   *  The IndexContext of the current index.
+   */
+  private static IndexContext CONTEXT=null;
+
+  private static HashMap<String,IndexContext> openIndexContexts =
+    new HashMap<String,IndexContext> ();
+
+  /**
+   *  The generation of the most recently opened index.
+   */
+  private static long generation = 0;
+
+  /**
+   *  The capacity, in bytes, of the postings cache of indexes that are
+   *  opened later.  0 disables the cache.
+   */
+  private static long postingsCacheCapacity = 0;
+
+  /**
+   *  True if indexes that are opened later preload their document
+   *  lengths into memory.
+   */
+  private static boolean preloadDocLengths = false;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
+  /**
+   *  True if indexes that are opened later build a table of external
+   *  document ids.
+   */
+  private static boolean buildExternalIdTable = false;
+
+  /**
+   *  True if indexes that are opened later build block metadata for
+   *  the inverted lists that they read.
+   */
+  private static boolean buildBlockMetadata = false;
+
+  /**
+   *  True if TERM operators that search indexes that are opened later
+   *  stream their postings.
+   */
+  private static boolean streamingPostings = false;
   private static String externalIdField = new String ("externalId");
 
+  /**
+   *  The bigram index of the next index that is opened, or null.
+   */
+  private static String bigramIndexPath = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -51,9 +91,7 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
-
-    Document doc = Idx.INDEXREADER.document (docid);
-    return doc.get (attributeName);
+    return Idx.CONTEXT.getAttribute (attributeName, docid);
   }
 
   /**
@@ -64,7 +102,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CONTEXT.getDocCount (fieldName);
   }
 
   /**
@@ -75,9 +113,57 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document doc = Idx.INDEXREADER.document(iid);
-    String eid = doc.get(externalIdField);
-    return eid;
+    return Idx.CONTEXT.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the IndexContext of the current index.  Query operators are
+   *  initialized with an IndexContext, and keep using it even if the
+   *  current index changes later.
+   *  @return The IndexContext of the current index.
+   */
+  public static IndexContext getIndexContext () {
+    return Idx.CONTEXT;
+  }
+
+  /**
+   *  Get the IndexContext of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The IndexContext of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexContext getIndexContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext context = openIndexContexts.get (indexPath);
+
+    if (context == null) {
+      throw new IllegalArgumentException ("The index " + indexPath + " isn't open");
+    }
+
+    return context;
+  }
+
+  /**
+   *  Get the inverted list of a term in a field of the current index.
+   *  The list may come from the postings cache, so it must be treated
+   *  as read-only.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList getInvList (String term, String fieldName)
+    throws IOException {
+    return Idx.CONTEXT.getInvList (term, fieldName);
+  }
+
+  /**
+   *  Get the postings cache of the current index.
+   *  @return The postings cache.
+   */
+  public static PostingsCache getPostingsCache () {
+    return Idx.CONTEXT.getPostingsCache ();
   }
 
   /**
@@ -89,7 +175,30 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CONTEXT.getFieldLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldId A field id returned by getFieldId.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getFieldLength (int fieldId, int docid)
+    throws IOException {
+    return Idx.CONTEXT.getFieldLength (fieldId, docid);
+  }
+
+  /**
+   *  Get the small integer id that the current index's document length
+   *  store uses for a field.  Resolving the id once is cheaper than
+   *  looking up lengths by field name.
+   *  @param fieldName The field name.
+   *  @return The field id, or -1 if the field is not indexed.
+   */
+  public static int getFieldId (String fieldName) {
+    return Idx.CONTEXT.getFieldId (fieldName);
   }
 
   /**
@@ -102,21 +211,7 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
-
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
-
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+    return Idx.CONTEXT.getInternalDocid (externalId);
   }
 
   /**
@@ -125,7 +220,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CONTEXT.getNumDocs ();
   }
 
   /**
@@ -138,7 +233,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CONTEXT.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -153,12 +248,14 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CONTEXT.getTotalTermFreq (fieldName, term);
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and create its IndexContext.  Opening an
+   *  index that is already open loads its current contents as a new
+   *  generation; results cached for older generations are discarded.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -167,7 +264,6 @@ public class Idx {
     throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
-    DocLengthStore docLengthStore;
 
     //  Open the Lucene index
 
@@ -177,46 +273,102 @@ public class Idx {
     if (indexReader == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
 
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
-    }
+    IndexContext context =
+      new IndexContext (indexPath, ++ Idx.generation,
+                        indexReader, externalIdField,
+                        preloadDocLengths, postingsCacheCapacity,
+                        buildExternalIdTable, buildBlockMetadata,
+                        streamingPostings, bigramIndexPath);
 
     //  Keep track of the open indexes.
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    openIndexContexts.put (indexPath, context);
 
-    //  The current index defaults to the first open index.
+    //  The current index defaults to the first open index.  Opening
+    //  the current index again loads its new generation.
 
-    if (Idx.INDEXREADER == null) {
+    if ((Idx.CONTEXT == null) ||
+        Idx.CONTEXT.getIndexPath ().equals (indexPath)) {
+      Idx.CONTEXT = context;
       Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
     }
   }
 
   /**
-   *  Change the current index to another open Lucene index.
+   *  Change the current index to another open Lucene index.  Queries
+   *  that were already initialized continue to use the IndexContext
+   *  that they were initialized with.
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
   public static void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext context = openIndexContexts.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (context == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CONTEXT = context;
+    Idx.INDEXREADER = context.getIndexReader ();
+  }
+
+  /**
+   *  Set the bigram index of the next index that is opened.  It must
+   *  have been built from that index (see BigramIndex).
+   *  @param path The bigram index file, or null for none.
+   */
+  public static void setBigramIndexPath (String path) {
+    Idx.bigramIndexPath = path;
+  }
+
+  /**
+   *  Choose whether indexes that are opened after this call build
+   *  block metadata (per-block score statistics) for their inverted
+   *  lists.
+   *  @param onOff True to build block metadata.
+   */
+  public static void setBuildBlockMetadata (boolean onOff) {
+    Idx.buildBlockMetadata = onOff;
+  }
+
+  /**
+   *  Choose whether indexes that are opened after this call build an
+   *  in-memory table of external document ids.
+   *  @param onOff True to build the table.
+   */
+  public static void setBuildExternalIdTable (boolean onOff) {
+    Idx.buildExternalIdTable = onOff;
+  }
+
+  /**
+   *  Choose whether indexes that are opened after this call preload
+   *  their document lengths into memory.
+   *  @param onOff True to preload document lengths.
+   */
+  public static void setPreloadDocLengths (boolean onOff) {
+    Idx.preloadDocLengths = onOff;
+  }
+
+  /**
+   *  Choose whether TERM operators that search indexes that are opened
+   *  after this call stream their postings from the index instead of
+   *  materializing them.
+   *  @param onOff True to stream postings.
+   */
+  public static void setStreamingPostings (boolean onOff) {
+    Idx.streamingPostings = onOff;
+  }
+
+  /**
+   *  Set the capacity of the postings cache of indexes that are opened
+   *  after this call.
+   *  @param bytes The capacity in bytes.  0 disables the cache.
+   */
+  public static void setPostingsCacheCapacity (long bytes) {
+    Idx.postingsCacheCapacity = bytes;
   }
 }
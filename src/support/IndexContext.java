@@ -0,0 +1,326 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An IndexContext is an open index and the auxiliary data structures
+ *  that are used to search it:  the document length store, the
+ *  postings cache, the optional external id table and bigram index, and collection
+ *  statistics that are looked up on every query.
+ *  <p>
+ *  Query operators receive the IndexContext that they search when they
+ *  are initialized, instead of reading global state.  An IndexContext
+ *  is not modified after it is created (its postings cache is
+ *  internally synchronized), so any number of threads may search one
+ *  or several IndexContexts at the same time without locks.
+ *  </p><p>
+ *  Idx creates an IndexContext for each index that it opens.
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final String indexPath;
+  private final IndexReader reader;
+  private final DocLengthStore docLengthStore;
+  private final PostingsCache postingsCache;
+  private final ExternalIdTable externalIdTable;
+  private final BigramIndex bigramIndex;
+  private final String externalIdField;
+
+  /**
+   *  True if TERM operators stream their postings from the index
+   *  instead of materializing them.
+   */
+  private final boolean streamingPostings;
+
+  /**
+   *  Identifies this opening of the index.  Each IndexContext that Idx
+   *  creates has a larger generation than the ones before it, so
+   *  results computed with an older generation can be recognized.
+   */
+  private final long generation;
+
+  //  Collection statistics.
+
+  private final long numDocs;
+  private final Map<String,Long> sumOfFieldLengths = new HashMap<String,Long> ();
+  private final Map<String,Integer> docCounts = new HashMap<String,Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param indexPath The directory that contains the index.
+   *  @param generation Identifies this opening of the index.
+   *  @param reader The open index.
+   *  @param externalIdField The field that stores external document ids.
+   *  @param preloadDocLengths If true, preload document lengths into memory.
+   *  @param postingsCacheCapacity The postings cache capacity, in
+   *         bytes.  0 disables the cache.
+   *  @param buildExternalIdTable If true, build an in-memory table of
+   *         external document ids.
+   *  @param buildBlockMetadata If true, build block metadata for every
+   *         inverted list that is read from the index.
+   *  @param streamingPostings If true, TERM operators stream their
+   *         postings from the index.
+   *  @param bigramIndexPath A bigram index built from this index, or
+   *         null if there is none.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IndexContext (String indexPath, long generation,
+                       IndexReader reader, String externalIdField,
+                       boolean preloadDocLengths, long postingsCacheCapacity,
+                       boolean buildExternalIdTable, boolean buildBlockMetadata,
+                       boolean streamingPostings, String bigramIndexPath)
+    throws IOException {
+
+    this.indexPath = indexPath;
+    this.generation = generation;
+    this.reader = reader;
+    this.externalIdField = externalIdField;
+    this.streamingPostings = streamingPostings;
+
+    //  Lucene doesn't store field lengths the way that we want them,
+    //  so we have our own document length store.
+
+    this.docLengthStore = new DocLengthStore (reader, preloadDocLengths);
+    this.postingsCache =
+      new PostingsCache (reader, postingsCacheCapacity,
+                         (buildBlockMetadata) ? this.docLengthStore : null);
+
+    //  Reading external ids from stored fields is slow, so optionally
+    //  build a table of them now.
+
+    this.externalIdTable = (buildExternalIdTable) ?
+      new ExternalIdTable (reader, externalIdField) : null;
+
+    this.bigramIndex = (bigramIndexPath != null) ?
+      new BigramIndex (bigramIndexPath, reader) : null;
+
+    //  Collection statistics don't change while the index is open.
+
+    this.numDocs = reader.numDocs ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      this.sumOfFieldLengths.put (field, reader.getSumTotalTermFreq (field));
+      this.docCounts.put (field, reader.getDocCount (field));
+    }
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document doc = this.reader.document (docid);
+    return doc.get (attributeName);
+  }
+
+  /**
+   *  Get the inverted list of an adjacent pair of terms (a bigram)
+   *  from the bigram index.  The list may come from the postings
+   *  cache, so it must be treated as read-only.
+   *  @param term1 The first term.
+   *  @param term2 The second term, which follows the first.
+   *  @param fieldName The field that the terms occur in.
+   *  @return The inverted list, or null if the bigram isn't indexed.
+   */
+  public InvList getBigramInvList (String term1, String term2, String fieldName) {
+    return (this.bigramIndex != null) ?
+      this.postingsCache.getBigram (this.bigramIndex, term1, term2, fieldName) : null;
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocCount (String fieldName) throws IOException {
+    Integer count = this.docCounts.get (fieldName);
+    return (count != null) ? count : this.reader.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+    if (this.externalIdTable != null) {
+      return this.externalIdTable.getExternalDocid (iid);
+    }
+
+    Document doc = this.reader.document (iid);
+    return doc.get (this.externalIdField);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldId A field id returned by getFieldId.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (int fieldId, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldId, docid);
+  }
+
+  /**
+   *  Get the small integer id that the document length store uses for
+   *  a field.
+   *  @param fieldName The field name.
+   *  @return The field id, or -1 if the field is not indexed.
+   */
+  public int getFieldId (String fieldName) {
+    return this.docLengthStore.getFieldId (fieldName);
+  }
+
+  /**
+   *  @return The generation of this opening of the index.
+   */
+  public long getGeneration () {
+    return this.generation;
+  }
+
+  /**
+   *  @return The directory that contains the index.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  @return The Lucene index.
+   */
+  public IndexReader getIndexReader () {
+    return this.reader;
+  }
+
+  /**
+   * Get the internal document id for a document specified by its
+   * external id, e.g. clueweb09-enwp00-88-09710. If no such document
+   * exists, throw an exception.
+   * @param externalId The external docid in the Lucene index.
+   * @return iternal docid.
+   * @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    if (this.externalIdTable != null) {
+      int iid = this.externalIdTable.getInternalDocid (externalId);
+
+      if (iid < 0) {
+        throw new Exception ("External id " + externalId + " not found.");
+      }
+
+      return iid;
+    }
+
+    BytesRef termBytes = new BytesRef (externalId);
+    Term term = new Term (this.externalIdField, termBytes);
+    int df = this.reader.docFreq (term);
+
+    if (df == 0) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (df > 1) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    PostingsEnum iList =
+      MultiFields.getTermPositionsEnum (this.reader, this.externalIdField, termBytes);
+    iList.nextDoc();
+    return (iList.docID());
+  }
+
+  /**
+   *  @return True if TERM operators stream their postings from the
+   *          index instead of materializing them.
+   */
+  public boolean isStreamingPostings () {
+    return this.streamingPostings;
+  }
+
+  /**
+   *  Get the inverted list of a term in a field.  The list may come
+   *  from the postings cache, so it must be treated as read-only.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList getInvList (String term, String fieldName)
+    throws IOException {
+    return this.postingsCache.get (term, fieldName);
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  @return The postings cache.
+   */
+  public PostingsCache getPostingsCache () {
+    return this.postingsCache;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus (e.g., add up the
+   *  lengths of every TITLE field in the corpus).
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getSumOfFieldLengths (String fieldName) throws IOException {
+    Long sum = this.sumOfFieldLengths.get (fieldName);
+    return (sum != null) ? sum : this.reader.getSumTotalTermFreq (fieldName);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in
+   *  a field (e.g., the total number of times the term 'apple'
+   *  occurs in title fields.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.reader.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+}
@@ -14,11 +14,37 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in a columnar form:  one int array of docids,
+ *  and one contiguous int array (the position pool) that holds the
+ *  locations of every posting back to back.  The locations of the
+ *  n'th posting are positions[positionOffsets[n]] through
+ *  positions[positionOffsets[n+1]-1], so the term frequency of a
+ *  posting is the width of its slice.  No per-posting objects are
+ *  allocated.
+ *  </p><p>
+ *  Optionally, an inverted list also has block metadata:  for each
+ *  block of BLOCK_SIZE postings, the last docid, the largest term
+ *  frequency, and the shortest field length.  Retrieval models use it
+ *  to bound the score of any document in a block without looking at
+ *  its postings.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  Initial capacity of inverted lists whose size is not known in
+   *  advance (e.g., lists produced by query operators).
+   */
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   *  The number of postings in a block of block metadata.
+   */
+  public static final int BLOCK_SIZE = 128;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -31,56 +57,43 @@ public class InvList {
    */
   public int df = 0;
 
+  /**
+   *  The largest term frequency of any posting.
+   */
+  private int maxTf = 0;
+
   /**
    *  The field covered by the inverted list.
    */
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term, in
+   *  increasing order.  Only the first df entries are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  positionOffsets[n] is the index in the position pool of the
+   *  first location of the n'th posting.  Only the first df+1 entries
+   *  are valid.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  private int[] positionOffsets;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int docid, int... locations) {
-      this.docid = docid;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The position pool.  Only the first ctf entries are valid.
+   */
+  private int[] positions;
 
-    public DocPosting(int docid, List<Integer> locations) {
-      this.docid = docid;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  Block metadata, or null if it hasn't been built.  The b'th block
+   *  is postings b*BLOCK_SIZE through (b+1)*BLOCK_SIZE-1.
+   *  blockLastDocids is written last, so a thread that sees it also
+   *  sees the other arrays.
+   */
+  private volatile int[] blockLastDocids = null;
+  private int[] blockMaxTfs = null;
+  private int[] blockMinLengths = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +101,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
@@ -96,15 +110,28 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
-   *  Get an inverted list from the index.
+   *  Get an inverted list from the current index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (Idx.INDEXREADER, termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from an index.
+   *  @param reader The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexReader reader, String termString, String fieldString)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -115,13 +142,23 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = reader.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The df and ctf are known in advance, so the arrays can be
+    //  allocated at their final sizes.
+
+    this.allocate (docFreq,
+                   (int) Math.max (0, reader.totalTermFreq(term)));
 
     //  Lookup the inverted list.
 
     PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+      MultiFields.getTermPositionsEnum (reader, fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -131,14 +168,48 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+      this.maxTf = Math.max (this.maxTf, tf);
+    }
+  }
+
+  /**
+   *  Allocate the internal arrays.
+   *  @param docCapacity The number of postings to make room for.
+   *  @param positionCapacity The number of locations to make room for.
+   */
+  private void allocate (int docCapacity, int positionCapacity) {
+    this.docids = new int[docCapacity];
+    this.positionOffsets = new int[docCapacity + 1];
+    this.positions = new int[positionCapacity];
+  }
+
+  /**
+   *  Make sure that the internal arrays can hold the specified number
+   *  of postings and locations, growing them if necessary.
+   *  @param docCapacity The number of postings required.
+   *  @param positionCapacity The number of locations required.
+   */
+  private void ensureCapacity (int docCapacity, int positionCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (positionCapacity > this.positions.length) {
+      int n = Math.max (positionCapacity, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
@@ -146,33 +217,238 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array whose first count entries are the
+   *         locations where the term occurs, in increasing order.
+   *  @param count The number of locations to copy from the array.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] locations, int count) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + count);
+    this.docids[this.df] = docid;
+    System.arraycopy (locations, 0, this.positions, this.ctf, count);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += count;
+    this.positionOffsets[this.df] = this.ctf;
+    this.maxTf = Math.max (this.maxTf, count);
     return true;
   }
 
+  /**
+   *  Find the first posting at or after index from whose docid is at
+   *  least docid.  The search gallops (probes from+1, from+2, from+4,
+   *  ...) until it passes docid, and then does a binary search within
+   *  the last step, so its cost is logarithmic in the distance
+   *  skipped rather than linear.
+   *  @param from The index of the posting to start from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int from, int docid) {
+
+    if ((from >= this.df) || (this.docids[from] >= docid))
+      return from;
+
+    //  Gallop.  Invariant: docids[lo] < docid.
+
+    int lo = from;
+    int step = 1;
+
+    while ((lo + step < this.df) && (this.docids[lo + step] < docid)) {
+      lo += step;
+      step <<= 1;
+    }
+
+    //  Binary search in (lo, hi].  docids[hi] >= docid, or hi == df.
+
+    int hi = Math.min (lo + step, this.df);
+
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Build the block metadata of the inverted list, if it hasn't been
+   *  built already.  Postings must not be appended afterwards.
+   *  @param lengths The document length store of the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized void buildBlockMetadata(DocLengthStore lengths)
+    throws IOException {
+
+    if (this.blockLastDocids != null)
+      return;
+
+    int fieldId = lengths.getFieldId (this.field);
+
+    if (fieldId < 0)
+      return;
+
+    int numBlocks = (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] lastDocids = new int[numBlocks];
+    this.blockMaxTfs = new int[numBlocks];
+    this.blockMinLengths = new int[numBlocks];
+
+    for (int b = 0; b < numBlocks; b++) {
+      int start = b * BLOCK_SIZE;
+      int end = Math.min (this.df, start + BLOCK_SIZE);
+      int maxTf = 0;
+      int minLength = Integer.MAX_VALUE;
+
+      for (int n = start; n < end; n++) {
+        maxTf = Math.max (maxTf, this.getTf (n));
+        minLength = Math.min (minLength,
+          (int) lengths.getDocLength (fieldId, this.docids[n]));
+      }
+
+      lastDocids[b] = this.docids[end - 1];
+      this.blockMaxTfs[b] = maxTf;
+      this.blockMinLengths[b] = minLength;
+    }
+
+    this.blockLastDocids = lastDocids;
+  }
+
+  /**
+   *  Indicates whether the inverted list has block metadata.
+   *  @return True if the block metadata has been built.
+   */
+  public boolean hasBlockMetadata() {
+    return (this.blockLastDocids != null);
+  }
+
+  /**
+   *  Find the block that contains the first posting whose docid is at
+   *  least docid.  The block metadata must have been built.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the block, or the number of blocks if there
+   *          is no such posting.
+   */
+  public int findBlock(int docid) {
+    int[] lastDocids = this.blockLastDocids;
+    int lo = 0;
+    int hi = lastDocids.length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (lastDocids[mid] < docid)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  @return The number of blocks of block metadata.
+   */
+  public int getBlockCount() {
+    return this.blockLastDocids.length;
+  }
+
+  /**
+   *  @param b The index of a block.
+   *  @return The docid of the last posting in the block.
+   */
+  public int getBlockLastDocid(int b) {
+    return this.blockLastDocids[b];
+  }
+
+  /**
+   *  @param b The index of a block.
+   *  @return The largest term frequency of a posting in the block.
+   */
+  public int getBlockMaxTf(int b) {
+    return this.blockMaxTfs[b];
+  }
+
+  /**
+   *  @param b The index of a block.
+   *  @return The shortest field length of a document in the block.
+   */
+  public int getBlockMinLength(int b) {
+    return this.blockMinLengths[b];
+  }
+
+  /**
+   *  Estimate the number of bytes of heap used by the inverted list.
+   *  @return The estimated size in bytes.
+   */
+  public long getMemoryUsage() {
+    long blockInts =
+      (this.blockLastDocids == null) ? 0 : 3L * this.blockLastDocids.length;
+
+    return (64L +
+            4L * (this.docids.length + this.positionOffsets.length +
+                  this.positions.length + blockInts));
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the largest term frequency of any posting in the inverted
+   *  list.  Retrieval models use it to bound a term's score.
+   *  @return The largest term frequency, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    return this.maxTf;
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location within the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Get the array that holds the locations of every document in the
+   *  inverted list.  The locations of the n'th document are the
+   *  getTf(n) entries that start at getPositionOffset(n).  The array
+   *  must be treated as read-only, and it may be replaced when a
+   *  posting is appended.
+   *  @return The location array.
+   */
+  public int[] getPositions() {
+    return this.positions;
+  }
+
+  /**
+   *  Get the index in the location array of the n'th document's first
+   *  location.
+   *  @param n The index of the requested document.
+   *  @return The index of the document's first location.
+   */
+  public int getPositionOffset(int n) {
+    return this.positionOffsets[n];
   }
 
   /**
@@ -181,7 +457,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.positionOffsets[n + 1] - this.positionOffsets[n];
   }
 
   /**
@@ -192,11 +468,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
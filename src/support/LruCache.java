@@ -0,0 +1,218 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A size-bounded cache of values keyed by strings, which is the
+ *  common part of the postings, result, and filter caches.  The
+ *  capacity is a number of bytes, and the caller gives the size of
+ *  each value when it is added.  When the cache is full, the least
+ *  recently used values are evicted.  Values larger than the whole
+ *  cache are not cached.
+ *  <p>
+ *  Values may also be tied to an index generation (see
+ *  IndexContext.getGeneration).  When a value of a newer generation
+ *  is requested or added, every cached value is discarded.  Requests
+ *  for an older generation bypass the cache.  Caches that belong to
+ *  one IndexContext can use any constant generation.
+ *  </p><p>
+ *  All methods are synchronized, so a cache may be shared by threads.
+ *  Cached values are shared too, so they must not be modified.
+ *  </p>
+ *  @param <V> The type of the cached values.
+ */
+public class LruCache<V> {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum number of bytes of values to keep.
+   */
+  private final long capacity;
+
+  /**
+   *  The index generation that the cached values were computed with.
+   */
+  private long generation = 0;
+
+  /**
+   *  The number of bytes used by the cached values.
+   */
+  private long bytesUsed = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   *  Cached values in least-recently-used order.
+   */
+  private final LinkedHashMap<String,Entry<V>> entries =
+    new LinkedHashMap<String,Entry<V>> (16, 0.75f, true);
+
+  private static class Entry<V> {
+    private final V value;
+    private final long size;
+
+    private Entry (V value, long size) {
+      this.value = value;
+      this.size = size;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The maximum number of bytes of values to keep.
+   *         A capacity of 0 disables caching.
+   */
+  public LruCache (long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   *  @return True if the cache has a positive capacity.
+   */
+  public boolean isEnabled () {
+    return (this.capacity > 0);
+  }
+
+  /**
+   *  Get a cached value.  Requests that bypass the cache (because it
+   *  is disabled or the generation is old) are not counted.
+   *  @param generation The index generation of the request.
+   *  @param key Identifies the value.
+   *  @return The value, or null if it isn't cached.
+   */
+  public synchronized V get (long generation, String key) {
+
+    if ((this.capacity <= 0) || (! this.checkGeneration (generation))) {
+      return null;
+    }
+
+    Entry<V> e = this.entries.get (key);
+
+    if (e == null) {
+      this.misses ++;
+      return null;
+    }
+
+    this.hits ++;
+    return e.value;
+  }
+
+  /**
+   *  Add a value to the cache, evicting least recently used values
+   *  until it fits.  A value whose key is already cached is ignored.
+   *  @param generation The index generation that the value was
+   *         computed with.
+   *  @param key Identifies the value.
+   *  @param value The value.
+   *  @param size The memory used by the value and its key, in bytes.
+   */
+  public synchronized void put (long generation, String key, V value, long size) {
+
+    if ((this.capacity <= 0) || (size > this.capacity) ||
+        (! this.checkGeneration (generation)) || this.entries.containsKey (key)) {
+      return;
+    }
+
+    Iterator<Entry<V>> it = this.entries.values ().iterator ();
+
+    while ((this.bytesUsed + size > this.capacity) && it.hasNext ()) {
+      this.bytesUsed -= it.next ().size;
+      it.remove ();
+      this.evictions ++;
+    }
+
+    this.entries.put (key, new Entry<V> (value, size));
+    this.bytesUsed += size;
+  }
+
+  /**
+   *  Discard the cached values if the generation is newer than theirs.
+   *  The caller must hold the lock.
+   *  @param generation An index generation.
+   *  @return False if the generation is older, which must not use the
+   *          cache.
+   */
+  private boolean checkGeneration (long generation) {
+
+    if (generation < this.generation) {
+      return false;
+    }
+
+    if (generation > this.generation) {
+      this.clear ();
+      this.generation = generation;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Discard all cached values.  The counters are not reset.
+   */
+  public synchronized void clear () {
+    this.entries.clear ();
+    this.bytesUsed = 0;
+  }
+
+  /**
+   *  @return The index generation of the cached values.
+   */
+  public synchronized long getGeneration () {
+    return this.generation;
+  }
+
+  /**
+   *  @return The number of bytes used by cached values.
+   */
+  public synchronized long getBytesUsed () {
+    return this.bytesUsed;
+  }
+
+  /**
+   *  @return The number of requests satisfied from the cache.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  @return The number of requests that were not cached.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  @return The number of values evicted to make room.
+   */
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  /**
+   *  @return The fraction of requests satisfied from the cache, or 0
+   *          if there were no requests.
+   */
+  public synchronized double getHitRate () {
+    long requests = this.hits + this.misses;
+    return (requests == 0) ? 0.0 : (double) this.hits / requests;
+  }
+
+  /**
+   *  Get a one-line summary of the cache's activity.
+   *  @return The summary.
+   */
+  @Override
+  public synchronized String toString () {
+    return ("hits: " + this.hits + ", misses: " + this.misses +
+            ", hit rate: " + String.format ("%.3f", this.getHitRate ()) +
+            ", evictions: " + this.evictions + ", entries: " + this.entries.size () +
+            ", bytes: " + this.bytesUsed + " / " + this.capacity);
+  }
+}
@@ -0,0 +1,198 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  A size-bounded cache of inverted lists read from the index, keyed
+ *  by (term, field), and of lists decoded from the bigram index.
+ *  Queries in a batch often share terms, and a term may occur several
+ *  times in one query, so reusing inverted lists avoids copying the
+ *  same postings from Lucene repeatedly.
+ *  <p>
+ *  The capacity is a number of bytes, not a number of entries,
+ *  because inverted lists vary in size by several orders of
+ *  magnitude.  When the cache is full, the least recently used lists
+ *  are evicted.  Lists larger than the whole cache are not cached.
+ *  </p><p>
+ *  Cached inverted lists are shared by every query operator that
+ *  uses them, so they must be treated as read-only.
+ *  </p>
+ */
+public class PostingsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The index that inverted lists are read from.
+   */
+  private final IndexReader reader;
+
+  /**
+   *  If it isn't null, block metadata is built for every inverted
+   *  list that is read, using these document lengths.
+   */
+  private final DocLengthStore blockLengths;
+
+  /**
+   *  Cached inverted lists.  They all belong to one index, so their
+   *  generation is always 0.
+   */
+  private final LruCache<InvList> lists;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param reader The index that inverted lists are read from.
+   *  @param capacity The maximum number of bytes of inverted lists to
+   *         keep.  A capacity of 0 disables caching.
+   */
+  public PostingsCache (IndexReader reader, long capacity) {
+    this (reader, capacity, null);
+  }
+
+  /**
+   *  @param reader The index that inverted lists are read from.
+   *  @param capacity The maximum number of bytes of inverted lists to
+   *         keep.  A capacity of 0 disables caching.
+   *  @param blockLengths If it isn't null, build block metadata for
+   *         each inverted list, using these document lengths.
+   */
+  public PostingsCache (IndexReader reader, long capacity,
+                        DocLengthStore blockLengths) {
+    this.reader = reader;
+    this.blockLengths = blockLengths;
+    this.lists = new LruCache<InvList> (capacity);
+  }
+
+  /**
+   *  Get the inverted list for a term in a field, reading it from the
+   *  index if it isn't cached.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList get (String termString, String fieldString)
+    throws IOException {
+
+    if (! this.lists.isEnabled ()) {
+      return this.read (termString, fieldString);
+    }
+
+    String key = fieldString + ":" + termString;
+    InvList list = this.lists.get (0, key);
+
+    if (list != null) {
+      return list;
+    }
+
+    //  Read the list without holding the lock, so that other threads
+    //  are not blocked by index access.
+
+    list = this.read (termString, fieldString);
+    this.lists.put (0, key, list, list.getMemoryUsage ());
+    return list;
+  }
+
+  /**
+   *  Get the inverted list of a bigram from a bigram index, decoding
+   *  it if it isn't cached.
+   *  @param bigramIndex The bigram index of this cache's index.
+   *  @param term1 The first term.
+   *  @param term2 The second term, which follows the first.
+   *  @param fieldString The field that the terms occur in.
+   *  @return The inverted list, or null if the bigram isn't indexed.
+   */
+  public InvList getBigram (BigramIndex bigramIndex, String term1,
+                            String term2, String fieldString) {
+
+    if (! this.lists.isEnabled ()) {
+      return bigramIndex.getInvList (term1, term2, fieldString);
+    }
+
+    //  Field names don't start with '#', so bigram keys don't collide
+    //  with term keys.
+
+    String key = "#bigram:" + fieldString + ":" + term1 + " " + term2;
+    InvList list = this.lists.get (0, key);
+
+    if (list != null) {
+      return list;
+    }
+
+    list = bigramIndex.getInvList (term1, term2, fieldString);
+
+    if (list != null) {
+      this.lists.put (0, key, list, list.getMemoryUsage ());
+    }
+
+    return list;
+  }
+
+  /**
+   *  Read an inverted list from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private InvList read (String termString, String fieldString)
+    throws IOException {
+
+    InvList list = new InvList (this.reader, termString, fieldString);
+
+    if (this.blockLengths != null) {
+      list.buildBlockMetadata (this.blockLengths);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Discard all cached inverted lists.  The counters are not reset.
+   */
+  public void clear () {
+    this.lists.clear ();
+  }
+
+  /**
+   *  @return The number of bytes used by cached inverted lists.
+   */
+  public long getBytesUsed () {
+    return this.lists.getBytesUsed ();
+  }
+
+  /**
+   *  @return The number of requests satisfied from the cache.
+   */
+  public long getHits () {
+    return this.lists.getHits ();
+  }
+
+  /**
+   *  @return The number of requests that read the index.
+   */
+  public long getMisses () {
+    return this.lists.getMisses ();
+  }
+
+  /**
+   *  @return The number of inverted lists evicted to make room.
+   */
+  public long getEvictions () {
+    return this.lists.getEvictions ();
+  }
+
+  /**
+   *  Get a one-line summary of the cache's activity.
+   *  @return The summary.
+   */
+  @Override
+  public String toString () {
+    return this.lists.toString ();
+  }
+}
@@ -0,0 +1,145 @@
+package support;
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A size-bounded cache of query results, keyed by a string that
+ *  identifies the query, the retrieval model and its parameters, and
+ *  the number of results.  Popular queries repeat often, and a cached
+ *  result avoids evaluating them again.
+ *  <p>
+ *  Results are stored as parallel arrays of docids and scores, in
+ *  rank order, instead of as ScoreList objects.  The capacity is a
+ *  number of bytes.  When the cache is full, the least recently used
+ *  results are evicted.  Results larger than the whole cache are not
+ *  cached.
+ *  </p><p>
+ *  Results are only valid for the index generation that produced
+ *  them.  When a result from a newer IndexContext is requested or
+ *  added, every cached result is discarded.  Requests for an older
+ *  generation bypass the cache.  The eviction and generation rules
+ *  are LruCache's.
+ *  </p>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  An estimate of the memory used by an entry, apart from its key
+   *  characters and its arrays.
+   */
+  private static final long ENTRY_OVERHEAD = 128;
+
+  private final LruCache<Entry> results;
+
+  /**
+   *  The docids and scores of one result, in rank order.
+   */
+  private static class Entry {
+    private final int[] docids;
+    private final double[] scores;
+
+    private Entry (ScoreList r) {
+      int n = r.size ();
+
+      this.docids = new int[n];
+      this.scores = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        this.docids[i] = r.getDocid (i);
+        this.scores[i] = r.getDocidScore (i);
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The maximum number of bytes of results to keep.
+   *         A capacity of 0 disables caching.
+   */
+  public ResultCache (long capacity) {
+    this.results = new LruCache<Entry> (capacity);
+  }
+
+  /**
+   *  Get a cached result.
+   *  @param context The index that the query is evaluated against.
+   *  @param key Identifies the query, model parameters, and result length.
+   *  @return A new ScoreList in rank order, or null if the result
+   *          isn't cached.
+   */
+  public ScoreList get (IndexContext context, String key) {
+
+    Entry e = this.results.get (context.getGeneration (), key);
+
+    if (e == null) {
+      return null;
+    }
+
+    ScoreList r = new ScoreList (context);
+
+    for (int i = 0; i < e.docids.length; i++) {
+      r.add (e.docids[i], e.scores[i]);
+    }
+
+    return r;
+  }
+
+  /**
+   *  Add a result to the cache, evicting least recently used results
+   *  until it fits.
+   *  @param context The index that the result was computed with.
+   *  @param key Identifies the query, model parameters, and result length.
+   *  @param r The result, in rank order.
+   */
+  public void put (IndexContext context, String key, ScoreList r) {
+
+    if (! this.results.isEnabled ()) {
+      return;
+    }
+
+    long size = ENTRY_OVERHEAD + 2L * key.length () + 12L * r.size ();
+    this.results.put (context.getGeneration (), key, new Entry (r), size);
+  }
+
+  /**
+   *  @return The number of bytes used by cached results.
+   */
+  public long getBytesUsed () {
+    return this.results.getBytesUsed ();
+  }
+
+  /**
+   *  @return The number of requests satisfied from the cache.
+   */
+  public long getHits () {
+    return this.results.getHits ();
+  }
+
+  /**
+   *  @return The number of requests that were not cached.
+   */
+  public long getMisses () {
+    return this.results.getMisses ();
+  }
+
+  /**
+   *  @return The fraction of requests satisfied from the cache, or 0
+   *          if there were no requests.
+   */
+  public double getHitRate () {
+    return this.results.getHitRate ();
+  }
+
+  /**
+   *  Get a one-line summary of the cache's activity.
+   *  @return The summary.
+   */
+  @Override
+  public String toString () {
+    return this.results.toString ();
+  }
+}
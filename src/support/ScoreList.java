@@ -13,30 +13,57 @@ import java.util.*;
 public class ScoreList {
 
 	// A utility class to create a <internalDocid, externalDocid, score>
-	// object.
+	// object. The external id is only needed to break ties, so it is
+	// looked up the first time that it is used.
 
 	private class ScoreListEntry {
 		private int docid;
-		private String externalId;
+		private String externalId = null;
 		private double score;
 
 		private ScoreListEntry(int internalDocid, double score) {
 			this.docid = internalDocid;
 			this.score = score;
+		}
 
-			try {
-				this.externalId = Idx.getExternalDocid(this.docid);
-			} catch (IOException ex) {
-				ex.printStackTrace();
+		private String getExternalId() {
+			if (this.externalId == null) {
+				try {
+					this.externalId = context.getExternalDocid(this.docid);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
 			}
+			return this.externalId;
 		}
 	}
 
+	/**
+	 * The index that the document ids refer to.
+	 */
+	private final IndexContext context;
+
 	/**
 	 * A list of document ids and scores.
 	 */
 	private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+	/**
+	 * Create an empty score list for documents in the current index.
+	 */
+	public ScoreList() {
+		this(Idx.getIndexContext());
+	}
+
+	/**
+	 * Create an empty score list.
+	 * 
+	 * @param context The index that the document ids refer to.
+	 */
+	public ScoreList(IndexContext context) {
+		this.context = context;
+	}
+
 	/**
 	 * Append a document score to a score list.
 	 * 
@@ -57,6 +84,22 @@ public class ScoreList {
 		return this.scores.get(n).docid;
 	}
 
+	/**
+	 * Get the external docid of the n'th entry.
+	 * 
+	 * @param n The index of the requested document.
+	 * @return The external document id.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public String getExternalDocid(int n) throws IOException {
+		ScoreListEntry entry = this.scores.get(n);
+
+		if (entry.externalId == null) {
+			entry.externalId = this.context.getExternalDocid(entry.docid);
+		}
+		return entry.externalId;
+	}
+
 	/**
 	 * Get the score of the n'th entry.
 	 * 
@@ -102,7 +145,7 @@ public class ScoreList {
 //			else if (s1.docid < s2.docid)
 //				return -1;
 			else
-				return s1.externalId.compareTo(s2.externalId);
+				return s1.getExternalId().compareTo(s2.getExternalId());
 		}
 	}
 
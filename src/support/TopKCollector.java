@@ -0,0 +1,190 @@
+package support;
+
+/**
+ *  Copyright (c) 2018 Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ * This class collects the k best (docid, score) pairs of a query without
+ * storing every matching document. It keeps a min-heap of primitive docids
+ * and scores whose root is the worst document kept so far, so a new document
+ * that can't beat the root is rejected with one comparison.
+ * <p>
+ * Documents are ordered the same way as ScoreList.sort orders them: by
+ * score, and then by external document id. External ids are only looked up
+ * when two scores tie, and they are remembered while a document stays in the
+ * heap. The final ScoreList therefore has exactly the first k entries of the
+ * fully sorted list.
+ * </p>
+ */
+public class TopKCollector {
+
+	/**
+	 * The index that the document ids refer to.
+	 */
+	private final IndexContext context;
+
+	/**
+	 * The maximum number of documents to keep.
+	 */
+	private final int k;
+
+	/**
+	 * The number of documents in the heap.
+	 */
+	private int size = 0;
+
+	// The heap, stored in parallel arrays. Entry 0 is the worst document.
+
+	private final int[] docids;
+	private final double[] scores;
+	private final String[] externalIds;
+
+	/**
+	 * @param context The index that the document ids refer to.
+	 * @param k       The maximum number of documents to keep; must be positive.
+	 */
+	public TopKCollector(IndexContext context, int k) {
+		this.context = context;
+		this.k = k;
+		this.docids = new int[k];
+		this.scores = new double[k];
+		this.externalIds = new String[k];
+	}
+
+	/**
+	 * Offer a document to the collector. It is kept if fewer than k documents
+	 * have been kept, or if it ranks above the worst document kept so far.
+	 *
+	 * @param docid An internal document id.
+	 * @param score The document's score.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public void add(int docid, double score) throws IOException {
+
+		if (this.size < this.k) {
+			int i = this.size++;
+			this.docids[i] = docid;
+			this.scores[i] = score;
+			this.externalIds[i] = null;
+			this.siftUp(i);
+			return;
+		}
+
+		// Only a tie with the worst document requires external ids.
+
+		if (score < this.scores[0]) {
+			return;
+		}
+
+		String externalId = null;
+
+		if (score == this.scores[0]) {
+			externalId = this.context.getExternalDocid(docid);
+
+			if (externalId.compareTo(this.getExternalId(0)) >= 0) {
+				return;
+			}
+		}
+
+		this.docids[0] = docid;
+		this.scores[0] = score;
+		this.externalIds[0] = externalId;
+		this.siftDown(0);
+	}
+
+	/**
+	 * Get the score that a document must reach to have a chance of being kept.
+	 * Until k documents have been collected, every document is kept.
+	 *
+	 * @return The score of the worst document kept, or negative infinity.
+	 */
+	public double getMinScore() {
+		return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+	}
+
+	/**
+	 * Get the collected documents as a ScoreList, best first.
+	 *
+	 * @return The sorted score list.
+	 */
+	public ScoreList getScoreList() {
+		ScoreList r = new ScoreList(this.context);
+
+		for (int i = 0; i < this.size; i++) {
+			r.add(this.docids[i], this.scores[i]);
+		}
+
+		r.sort();
+		return r;
+	}
+
+	/**
+	 * Get the external id of the i'th heap entry, looking it up if necessary.
+	 */
+	private String getExternalId(int i) throws IOException {
+		if (this.externalIds[i] == null) {
+			this.externalIds[i] = this.context.getExternalDocid(this.docids[i]);
+		}
+		return this.externalIds[i];
+	}
+
+	/**
+	 * Returns true if the i'th heap entry ranks below the j'th heap entry.
+	 */
+	private boolean worse(int i, int j) throws IOException {
+		if (this.scores[i] != this.scores[j]) {
+			return this.scores[i] < this.scores[j];
+		}
+		return this.getExternalId(i).compareTo(this.getExternalId(j)) > 0;
+	}
+
+	private void siftUp(int i) throws IOException {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+
+			if (!this.worse(i, parent)) {
+				break;
+			}
+
+			this.swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) throws IOException {
+		while (true) {
+			int child = 2 * i + 1;
+
+			if (child >= this.size) {
+				break;
+			}
+
+			if ((child + 1 < this.size) && this.worse(child + 1, child)) {
+				child++;
+			}
+
+			if (!this.worse(child, i)) {
+				break;
+			}
+
+			this.swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int d = this.docids[i];
+		this.docids[i] = this.docids[j];
+		this.docids[j] = d;
+
+		double s = this.scores[i];
+		this.scores[i] = this.scores[j];
+		this.scores[j] = s;
+
+		String e = this.externalIds[i];
+		this.externalIds[i] = this.externalIds[j];
+		this.externalIds[j] = e;
+	}
+}